@@ -0,0 +1,114 @@
+package kvstore;
+
+/**
+ * Adaptive replacement in its clock form (CAR), which needs nothing more
+ * than a reference bit on a hit and so works under the shared read lock.
+ * Keys seen once live in a recency clock and keys used again in a frequency
+ * clock; ghost lists of keys recently dropped from each clock steer a
+ * per-set target for the size of the recency clock towards whichever side is
+ * losing keys it should have kept. The ghost lists are capped at the set
+ * size each rather than jointly.
+ */
+public class ARCPolicy extends EvictionPolicy {
+
+    private static final int RECENT = 0;
+    private static final int FREQUENT = 1;
+
+    private final SlotQueues clocks;
+    private final GhostList recentGhosts;
+    private final GhostList frequentGhosts;
+
+    /* Per set: target size of the recency clock */
+    private final int[] target;
+    private final int[] hashes;
+
+    /* Per set: the clock the last victim was taken from */
+    private final int[] victimClock;
+
+    /**
+     * @param numSets the number of sets of the cache
+     * @param maxElemsPerSet the size of each set
+     */
+    public ARCPolicy(int numSets, int maxElemsPerSet) {
+        super(numSets, maxElemsPerSet);
+        clocks = new SlotQueues(numSets, maxElemsPerSet, 2);
+        recentGhosts = new GhostList(numSets, maxElemsPerSet);
+        frequentGhosts = new GhostList(numSets, maxElemsPerSet);
+        target = new int[numSets];
+        hashes = new int[numSets * maxElemsPerSet];
+        victimClock = new int[numSets];
+    }
+
+    @Override
+    public void inserted(int setId, int slot, int hash) {
+        referenced[slot] = false;
+        hashes[slot] = hash;
+        int recent = recentGhosts.size(setId);
+        int frequent = frequentGhosts.size(setId);
+        int q = FREQUENT;
+        if (recentGhosts.remove(setId, hash)) {
+            // dropped from the recency clock too soon: let it grow
+            int step = Math.max(1, frequent / recent);
+            target[setId] = Math.min(target[setId] + step, maxElemsPerSet);
+        } else if (frequentGhosts.remove(setId, hash)) {
+            int step = Math.max(1, recent / frequent);
+            target[setId] = Math.max(target[setId] - step, 0);
+        } else {
+            q = RECENT;
+        }
+        clocks.append(clocks.queue(setId, q), slot);
+    }
+
+    @Override
+    public void removed(int setId, int slot) {
+        clocks.unlink(slot);
+        referenced[slot] = false;
+    }
+
+    /* Puts the victim back at the tail of the clock it left, unadapted */
+    @Override
+    public void retained(int setId, int slot, int hash) {
+        int q = victimClock[setId];
+        if (q == RECENT) {
+            recentGhosts.removeNewest(setId);
+        } else {
+            frequentGhosts.removeNewest(setId);
+        }
+        clocks.append(clocks.queue(setId, q), slot);
+    }
+
+    @Override
+    public int evict(int setId) {
+        int recent = clocks.queue(setId, RECENT);
+        int frequent = clocks.queue(setId, FREQUENT);
+        while (true) {
+            int size = clocks.size(recent);
+            if (size >= Math.max(1, target[setId]) || clocks.size(frequent) == 0) {
+                int slot = clocks.head(recent);
+                clocks.unlink(slot);
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                    clocks.append(frequent, slot);
+                    secondChance(setId);
+                } else {
+                    recentGhosts.add(setId, hashes[slot]);
+                    victimClock[setId] = RECENT;
+                    return slot;
+                }
+            } else {
+                int slot = clocks.head(frequent);
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                    clocks.rotate(frequent);
+                    secondChance(setId);
+                } else {
+                    clocks.unlink(slot);
+                    frequentGhosts.add(setId, hashes[slot]);
+                    victimClock[setId] = FREQUENT;
+                    return slot;
+                }
+            }
+        }
+    }
+
+}
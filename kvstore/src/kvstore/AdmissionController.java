@@ -0,0 +1,164 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides, when a queued request reaches a worker thread, whether it is still
+ * worth carrying out. A request is dropped once its deadline has passed: the
+ * timeout sent by the client if there is one, otherwise TIMEOUT_MILLISECONDS,
+ * after which KVClient stops waiting. The queueing delay of every request is
+ * recorded, and while the 99th percentile of recent delays is above a
+ * threshold, requests that have themselves waited longer than the threshold
+ * are shed so that the queue drains instead of serving stale work.
+ *
+ * No lock is taken on the request path. Delays are counted in histograms of
+ * millisecond buckets, and the thread that records every
+ * RECOMPUTE_INTERVAL-th delay works out the percentile and publishes it.
+ */
+public class AdmissionController {
+
+    /* Default queueing delay above which requests start to be shed */
+    public static final int DEFAULT_SHED_THRESHOLD_MILLISECONDS = TIMEOUT_MILLISECONDS / 4;
+
+    /* Number of recent queueing delays the percentile is taken over at most */
+    private static final int WINDOW = 1024;
+
+    /* Delays are counted in buckets of a millisecond; the last bucket also
+       counts every longer delay, which has expired unless the client asked
+       for a longer timeout */
+    private static final int BUCKETS = TIMEOUT_MILLISECONDS + 1;
+
+    /* Number of delays recorded between recomputations of the percentile */
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    private final int shedThresholdMillis;
+
+    /* Two histograms taking turns to count WINDOW / 2 delays each, so the
+       percentile covers between WINDOW / 2 and WINDOW recent delays */
+    private final AtomicLongArray[] histograms = {
+            new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS) };
+    private final AtomicLong recorded = new AtomicLong();
+
+    private volatile long delayP99 = 0;
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+
+    /**
+     * Constructs an AdmissionController that sheds at
+     * DEFAULT_SHED_THRESHOLD_MILLISECONDS.
+     */
+    public AdmissionController() {
+        this(DEFAULT_SHED_THRESHOLD_MILLISECONDS);
+    }
+
+    /**
+     * Constructs an AdmissionController.
+     *
+     * @param shedThresholdMillis 99th percentile queueing delay above which
+     *        requests that waited at least as long are shed
+     */
+    public AdmissionController(int shedThresholdMillis) {
+        this.shedThresholdMillis = shedThresholdMillis;
+    }
+
+    /**
+     * Records how long a request waited and decides whether to carry it out.
+     * A request that was never given an enqueue time is always admitted.
+     *
+     * @param request KVMessage about to be carried out
+     * @param now current time in milliseconds since the epoch
+     * @return null if the request should be carried out, otherwise the
+     *         response to send instead: ERROR_DEADLINE_EXCEEDED or
+     *         ERROR_SERVER_BUSY
+     */
+    public KVMessage admit(KVMessage request, long now) {
+        if (request.getEnqueueTime() == 0) {
+            return null;
+        }
+        long delay = Math.max(0, now - request.getEnqueueTime());
+        int timeout = (request.getTimeout() > 0)
+                ? request.getTimeout() : TIMEOUT_MILLISECONDS;
+        record(delay);
+        if (delay >= timeout) {
+            expiredCount.incrementAndGet();
+            return new KVMessage(RESP, ERROR_DEADLINE_EXCEEDED);
+        }
+        if (delayP99 > shedThresholdMillis && delay > shedThresholdMillis) {
+            shedCount.incrementAndGet();
+            return new KVMessage(RESP, ERROR_SERVER_BUSY);
+        }
+        admittedCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return 99th percentile queueing delay, in milliseconds, over the most
+     *         recent requests, as of the last recomputation; at most
+     *         TIMEOUT_MILLISECONDS
+     */
+    public long getQueueDelayP99() {
+        return delayP99;
+    }
+
+    /**
+     * @return number of requests admitted
+     */
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * @return number of requests dropped because their deadline had passed
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return number of requests shed while queueing delay was too high
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    private void record(long delay) {
+        long n = recorded.getAndIncrement();
+        AtomicLongArray histogram = histograms[(int) ((n / (WINDOW / 2)) & 1)];
+        if (n % (WINDOW / 2) == 0 && n > 0) {
+            // the histogram's turn comes round again; forget its old delays
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+        histogram.incrementAndGet((int) Math.min(delay, BUCKETS - 1));
+        if ((n + 1) % RECOMPUTE_INTERVAL == 0) {
+            delayP99 = percentile(0.99);
+        }
+    }
+
+    /* Smallest recent delay that at least the given fraction of delays do not exceed */
+    private long percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += count(i);
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += count(i);
+            if (seen >= rank && seen > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private long count(int bucket) {
+        return histograms[0].get(bucket) + histograms[1].get(bucket);
+    }
+
+}
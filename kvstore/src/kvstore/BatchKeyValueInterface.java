@@ -0,0 +1,45 @@
+package kvstore;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A KeyValueInterface that can also carry out batches of requests, as the
+ * key-value servers do for the MULTI_* request types.
+ */
+public interface BatchKeyValueInterface extends KeyValueInterface {
+
+    /**
+     * Insert a batch of Key, Value pairs. Every key and value is checked
+     * before any of them is written.
+     * @param pairs keys and the values to put for them
+     * @throws KVException if any key or value is invalid
+     */
+    public void putAll(Map<String, String> pairs) throws KVException;
+
+    /**
+     * Retrieve the objects corresponding to a batch of keys
+     * @param keys keys to look up
+     * @return values of the keys that exist, in the order the keys were given;
+     *         keys that do not exist are left out
+     * @throws KVException if any key is invalid
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws KVException;
+
+    /**
+     * Delete the objects corresponding to a batch of keys. Keys that do not
+     * exist are skipped.
+     * @param keys keys to delete
+     * @return the keys that existed and were deleted
+     * @throws KVException if any key is invalid
+     */
+    public Set<String> delAll(Collection<String> keys) throws KVException;
+
+    /**
+     * @return counters for each set of the server's cache, as reported to
+     *         clients by STATS_REQ
+     */
+    public CacheStats getCacheStats();
+
+}
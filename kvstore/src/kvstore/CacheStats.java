@@ -0,0 +1,279 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters kept per cache set, so that the sizing of a cache can be checked
+ * and a hot set spotted. Each set's counters are split over a few cells, in
+ * the manner of a LongAdder: a thread adds to one cell, moves to another
+ * when it finds its cell contended, and a read sums the cells. Every cell
+ * fills two cache lines of an atomic array, so threads reading one hot set
+ * mostly update different memory, and cells of different sets never share a
+ * line. Values are read without stopping updates, so a report is only
+ * consistent to within the updates in flight.
+ *
+ * Besides counting events, the stats track how many entries each set holds,
+ * and summarize how unevenly lookups and entries are spread across the sets:
+ * a skew well above 1 means a few sets carry most of the traffic, because the
+ * keys hash badly or because a handful of keys are hot.
+ */
+public class CacheStats {
+
+    /**
+     * What is counted for each set.
+     */
+    public enum Counter {
+        /** Gets that found the key. */
+        HITS("hits"),
+        /** Gets that did not find the key. */
+        MISSES("misses"),
+        /** New keys stored. */
+        INSERTIONS("insertions"),
+        /** Entries dropped to make room. */
+        EVICTIONS("evictions"),
+        /** Times the eviction policy spared an entry because it was used. */
+        SECOND_CHANCES("secondChances"),
+        /** Lock acquisitions that had to wait. */
+        CONTENDED_LOCKS("contendedLocks"),
+        /** Total time spent waiting for locks, in nanoseconds. */
+        LOCK_WAIT_NANOS("lockWaitNanos"),
+        /** Entries held now; goes down as entries are deleted or evicted. */
+        ENTRIES("entries");
+
+        private final String label;
+
+        private Counter(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return name of the counter in reports
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    /* Longs per cell: the counters padded out to two 64-byte cache lines,
+       since lines are often prefetched in pairs */
+    private static final int STRIDE = 16;
+
+    /* Cells per set, a power of two no larger than the number of CPUs */
+    private static final int CELLS = Math.min(4,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+    /* Cell each thread adds to, changed when the thread meets contention */
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] { KVCache.spread((int) Thread.currentThread().getId()) };
+        }
+    };
+
+    private final int numSets;
+    private final AtomicLongArray counts;
+
+    /**
+     * @param numSets the number of sets to keep counters for
+     */
+    public CacheStats(int numSets) {
+        this.numSets = numSets;
+        this.counts = new AtomicLongArray(numSets * CELLS * STRIDE);
+    }
+
+    /**
+     * Builds a snapshot covering the sets of several caches in turn, such as
+     * the shards of a PartitionedKVServer.
+     *
+     * @param parts stats to combine, in order
+     * @return stats with the sets of each part numbered after the last
+     */
+    public static CacheStats concat(List<CacheStats> parts) {
+        int total = 0;
+        for (CacheStats part : parts) {
+            total += part.numSets;
+        }
+        CacheStats combined = new CacheStats(total);
+        int base = 0;
+        for (CacheStats part : parts) {
+            for (int setId = 0; setId < part.numSets; setId++) {
+                for (Counter counter : COUNTERS) {
+                    combined.add(base + setId, counter, part.get(setId, counter));
+                }
+            }
+            base += part.numSets;
+        }
+        return combined;
+    }
+
+    /**
+     * @return the number of sets counted
+     */
+    public int getNumSets() {
+        return numSets;
+    }
+
+    /**
+     * @param setId set the event happened in
+     * @param counter what happened
+     * @param delta amount to add
+     */
+    public void add(int setId, Counter counter, long delta) {
+        int[] probe = PROBE.get();
+        int i = index(setId, probe[0] & (CELLS - 1), counter);
+        long value = counts.get(i);
+        if (!counts.compareAndSet(i, value, value + delta)) {
+            counts.getAndAdd(i, delta);
+            probe[0] = rehash(probe[0]);
+        }
+    }
+
+    /**
+     * @param setId set of interest
+     * @param counter counter of interest
+     * @return its current value
+     */
+    public long get(int setId, Counter counter) {
+        long value = 0;
+        for (int cell = 0; cell < CELLS; cell++) {
+            value += counts.get(index(setId, cell, counter));
+        }
+        return value;
+    }
+
+    private static int index(int setId, int cell, Counter counter) {
+        return (setId * CELLS + cell) * STRIDE + counter.ordinal();
+    }
+
+    /* Marsaglia xorshift, as LongAdder uses to pick a new cell */
+    private static int rehash(int probe) {
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    /**
+     * @param counter counter of interest
+     * @return its sum over all sets
+     */
+    public long getTotal(Counter counter) {
+        long total = 0;
+        for (int setId = 0; setId < numSets; setId++) {
+            total += get(setId, counter);
+        }
+        return total;
+    }
+
+    /**
+     * @param setId set of interest
+     * @return hits and misses of the set
+     */
+    public long getLookups(int setId) {
+        return get(setId, Counter.HITS) + get(setId, Counter.MISSES);
+    }
+
+    /**
+     * How much busier the busiest set is than the average set.
+     *
+     * @return largest number of lookups in one set over the mean number per
+     *         set; 1 when lookups are spread evenly, numSets when they all go
+     *         to one set, and 0 before any lookups
+     */
+    public double getLookupSkew() {
+        long max = 0;
+        long total = 0;
+        for (int setId = 0; setId < numSets; setId++) {
+            long lookups = getLookups(setId);
+            max = Math.max(max, lookups);
+            total += lookups;
+        }
+        return skew(max, total);
+    }
+
+    /**
+     * How much fuller the fullest set is than the average set.
+     *
+     * @return largest number of entries in one set over the mean number per
+     *         set, in the same terms as getLookupSkew
+     */
+    public double getOccupancySkew() {
+        long max = 0;
+        long total = 0;
+        for (int setId = 0; setId < numSets; setId++) {
+            long entries = get(setId, Counter.ENTRIES);
+            max = Math.max(max, entries);
+            total += entries;
+        }
+        return skew(max, total);
+    }
+
+    /**
+     * The share of all lookups that went to the busiest sets.
+     *
+     * @param count number of sets to count, such as 1% of numSets
+     * @return fraction from 0 to 1 of lookups made in the count busiest sets,
+     *         or 0 before any lookups
+     */
+    public double getBusiestShare(int count) {
+        long[] lookups = new long[numSets];
+        long total = 0;
+        for (int setId = 0; setId < numSets; setId++) {
+            lookups[setId] = getLookups(setId);
+            total += lookups[setId];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        Arrays.sort(lookups);
+        long busiest = 0;
+        for (int i = numSets - 1; i >= Math.max(0, numSets - count); i--) {
+            busiest += lookups[i];
+        }
+        return (double) busiest / total;
+    }
+
+    private double skew(long max, long total) {
+        return (total == 0) ? 0 : (double) max * numSets / total;
+    }
+
+    /**
+     * @param setId set to describe
+     * @return the set's counters as space-separated label=value pairs
+     */
+    public String describe(int setId) {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : COUNTERS) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(counter.getLabel()).append('=').append(get(setId, counter));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the totals over all sets, in the same form as describe,
+     *         followed by lookupSkew, occupancySkew and the busiestShare of
+     *         lookups taken by the busiest 10% of the sets
+     */
+    public String describeTotal() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : COUNTERS) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(counter.getLabel()).append('=').append(getTotal(counter));
+        }
+        sb.append(String.format(Locale.ROOT, " lookupSkew=%.2f occupancySkew=%.2f busiestShare=%.2f",
+                getLookupSkew(), getOccupancySkew(),
+                getBusiestShare(Math.max(1, numSets / 10))));
+        return sb.toString();
+    }
+
+}
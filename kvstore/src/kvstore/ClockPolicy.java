@@ -0,0 +1,47 @@
+package kvstore;
+
+/**
+ * Second-chance replacement: entries queue in the order they were added,
+ * and the oldest is dropped unless it has been used since it was last at the
+ * head of the queue, in which case its reference bit is cleared and it goes
+ * to the back.
+ */
+public class ClockPolicy extends EvictionPolicy {
+
+    private final SlotQueues queues;
+
+    /**
+     * @param numSets the number of sets of the cache
+     * @param maxElemsPerSet the size of each set
+     */
+    public ClockPolicy(int numSets, int maxElemsPerSet) {
+        super(numSets, maxElemsPerSet);
+        queues = new SlotQueues(numSets, maxElemsPerSet, 1);
+    }
+
+    @Override
+    public void inserted(int setId, int slot, int hash) {
+        referenced[slot] = false;
+        queues.append(setId, slot);
+    }
+
+    @Override
+    public void removed(int setId, int slot) {
+        queues.unlink(slot);
+        referenced[slot] = false;
+    }
+
+    @Override
+    public int evict(int setId) {
+        int slot = queues.head(setId);
+        while (referenced[slot]) {
+            referenced[slot] = false;
+            queues.rotate(setId);
+            secondChance(setId);
+            slot = queues.head(setId);
+        }
+        queues.unlink(slot);
+        return slot;
+    }
+
+}
@@ -0,0 +1,311 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of persistent binary-framed connections to one server.
+ * Idle connections are handed out most recently used first, so that the
+ * least recently used ones sit idle long enough to be evicted. A connection
+ * that has been idle for a while is checked before it is handed out, since
+ * the server closes connections it considers idle. Connections left idle for
+ * maxIdleMillis are closed by a background thread, so that a client that
+ * falls quiet does not keep server resources tied up.
+ */
+public class ConnectionPool {
+
+    private final String server;
+    private final int port;
+    private final int maxSize;
+    private final int maxIdleMillis;
+
+    /* Idle connections, most recently returned first */
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+    /* Connections currently open, idle or borrowed */
+    private int openCount = 0;
+
+    private boolean closed = false;
+
+    /* Whether a reap is scheduled; guarded by the lock on this pool */
+    private boolean reapScheduled = false;
+
+    /* Closes expired idle connections for every pool */
+    private static final ScheduledExecutorService REAPER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "connection-reaper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Constructs an empty ConnectionPool. Connections are opened on demand.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param maxSize most connections open at once
+     * @param maxIdleMillis how long a connection may sit idle in the pool
+     *        before it is closed
+     */
+    public ConnectionPool(String server, int port, int maxSize, int maxIdleMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.server = server;
+        this.port = port;
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Takes a healthy connection from the pool, opening a new one if none is
+     * idle. If maxSize connections are already borrowed, waits up to
+     * TIMEOUT_MILLISECONDS for one to be returned.
+     *
+     * @return Connection for the exclusive use of the caller until it is
+     *         passed to release or discard
+     * @throws KVException with ERROR_COULD_NOT_CONNECT or
+     *         ERROR_COULD_NOT_CREATE_SOCKET
+     */
+    public Connection borrow() throws KVException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLISECONDS;
+        while (true) {
+            Connection conn;
+            synchronized (this) {
+                evictIdle();
+                while (idle.isEmpty() && openCount >= maxSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (closed || wait <= 0) {
+                        throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+                    }
+                    evictIdle();
+                }
+                if (closed) {
+                    throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+                }
+                conn = idle.pollFirst();
+                // reserve the slot before connecting outside the lock
+                if (conn == null) {
+                    openCount++;
+                }
+            }
+            if (conn == null) {
+                try {
+                    return new Connection(connect());
+                } catch (KVException e) {
+                    slotFreed();
+                    throw e;
+                }
+            }
+            if (conn.isHealthy()) {
+                conn.reused = true;
+                return conn;
+            }
+            discard(conn);
+        }
+    }
+
+    /**
+     * Returns a connection to the pool after a complete request and response.
+     *
+     * @param conn Connection obtained from borrow
+     */
+    public void release(Connection conn) {
+        conn.lastUsed = System.currentTimeMillis();
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(conn);
+                notify();
+                scheduleReap(maxIdleMillis);
+                return;
+            }
+        }
+        discard(conn);
+    }
+
+    /**
+     * Closes a connection that failed or is in an unknown state instead of
+     * returning it to the pool.
+     *
+     * @param conn Connection obtained from borrow
+     */
+    public void discard(Connection conn) {
+        conn.close();
+        slotFreed();
+    }
+
+    /**
+     * Closes every idle connection. Borrowed connections are closed when they
+     * are released. The pool cannot be used afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        closeIdle();
+    }
+
+    /**
+     * Closes every idle connection but leaves the pool usable.
+     */
+    public void closeIdle() {
+        ArrayDeque<Connection> evicted;
+        synchronized (this) {
+            evicted = new ArrayDeque<Connection>(idle);
+            idle.clear();
+        }
+        for (Connection conn : evicted) {
+            discard(conn);
+        }
+    }
+
+    /**
+     * @return number of connections currently open, idle or borrowed
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return number of connections currently idle in the pool
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    private synchronized void slotFreed() {
+        openCount--;
+        notify();
+    }
+
+    /* Called with the lock held */
+    private void scheduleReap(long delayMillis) {
+        if (reapScheduled) {
+            return;
+        }
+        reapScheduled = true;
+        REAPER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        }, Math.max(1, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /* Closes expired idle connections, then waits for the next to expire */
+    private synchronized void reap() {
+        reapScheduled = false;
+        evictIdle();
+        Connection oldest = idle.peekLast();
+        if (oldest != null && !closed) {
+            scheduleReap(oldest.lastUsed + maxIdleMillis - System.currentTimeMillis());
+        }
+    }
+
+    /* Called with the lock held; closes connections idle for too long */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            Connection conn = it.next();
+            if (now - conn.lastUsed < maxIdleMillis) {
+                break;
+            }
+            it.remove();
+            conn.close();
+            openCount--;
+        }
+    }
+
+    private Socket connect() throws KVException {
+        try {
+            Socket socket = new Socket(this.server, this.port);
+            socket.setSoTimeout(TIMEOUT_MILLISECONDS);
+            return socket;
+        } catch (UnknownHostException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CREATE_SOCKET));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+        }
+    }
+
+    /**
+     * A persistent connection with buffered streams for exchanging frames.
+     */
+    public static class Connection {
+
+        private final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed = System.currentTimeMillis();
+        boolean reused = false;
+
+        Connection(Socket socket) throws KVException {
+            this.socket = socket;
+            try {
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                close();
+                throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+            }
+        }
+
+        /**
+         * @return whether this connection was used for an earlier request,
+         *         in which case the server may have closed it since
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Checks an idle connection before reuse without blocking. A
+         * connection holding unexpected data is out of step with the server.
+         * One the server has closed since is not detected here; a request
+         * that then finds it closed is sent again by KVClient on a new
+         * connection.
+         */
+        boolean isHealthy() {
+            if (socket.isClosed()) {
+                return false;
+            }
+            try {
+                return in.available() == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore, the connection is being discarded
+            }
+        }
+    }
+}
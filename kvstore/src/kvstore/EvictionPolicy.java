@@ -0,0 +1,165 @@
+package kvstore;
+
+/**
+ * Decides which entry of a full KVCache set to drop. The cache tells its
+ * policy about every slot that is filled, hit or emptied, and asks it for a
+ * victim when a put finds no free slot. The slots of set s are numbered from
+ * s * maxElemsPerSet, the same as in the cache.
+ *
+ * accessed may be called by several readers of a set at once, holding only
+ * the read lock of the set, so it must only make updates that are harmless
+ * to race, such as setting a flag. Every other method is called with the
+ * write lock of the set held.
+ */
+public abstract class EvictionPolicy {
+
+    /**
+     * The built-in policies.
+     */
+    public enum Type {
+        /** Second-chance FIFO, the original KVCache behaviour. */
+        CLOCK {
+            @Override
+            public EvictionPolicy create(int numSets, int maxElemsPerSet) {
+                return new ClockPolicy(numSets, maxElemsPerSet);
+            }
+        },
+        /** Least recently used. */
+        LRU {
+            @Override
+            public EvictionPolicy create(int numSets, int maxElemsPerSet) {
+                return new LRUPolicy(numSets, maxElemsPerSet);
+            }
+        },
+        /** A small probationary FIFO in front of a main FIFO, resists scans. */
+        S3_FIFO {
+            @Override
+            public EvictionPolicy create(int numSets, int maxElemsPerSet) {
+                return new S3FIFOPolicy(numSets, maxElemsPerSet);
+            }
+        },
+        /** Adaptive replacement, balancing recency against frequency. */
+        ARC {
+            @Override
+            public EvictionPolicy create(int numSets, int maxElemsPerSet) {
+                return new ARCPolicy(numSets, maxElemsPerSet);
+            }
+        };
+
+        /**
+         * @param numSets the number of sets of the cache
+         * @param maxElemsPerSet the size of each set
+         * @return a new policy of this type for a cache of that shape
+         */
+        public abstract EvictionPolicy create(int numSets, int maxElemsPerSet);
+    }
+
+    protected final int numSets;
+    protected final int maxElemsPerSet;
+
+    /* Per slot; set by readers holding only the read lock */
+    protected final boolean[] referenced;
+
+    /* Set by the cache the policy belongs to, if it keeps statistics */
+    private CacheStats stats;
+
+    /**
+     * @param numSets the number of sets of the cache
+     * @param maxElemsPerSet the size of each set
+     */
+    protected EvictionPolicy(int numSets, int maxElemsPerSet) {
+        this.numSets = numSets;
+        this.maxElemsPerSet = maxElemsPerSet;
+        this.referenced = new boolean[numSets * maxElemsPerSet];
+    }
+
+    /**
+     * @return the number of sets of the cache this policy is for
+     */
+    public int getNumSets() {
+        return numSets;
+    }
+
+    /**
+     * @return the size of each set of the cache this policy is for
+     */
+    public int getMaxElemsPerSet() {
+        return maxElemsPerSet;
+    }
+
+    /**
+     * Records a hit on, or a new value for, the entry in a slot. May be
+     * called with only the read lock of the set held.
+     *
+     * @param setId set of the slot
+     * @param slot slot that was accessed
+     */
+    public void accessed(int setId, int slot) {
+        referenced[slot] = true;
+    }
+
+    /**
+     * @param slot a filled slot
+     * @return whether the entry in the slot has been used since the policy
+     *         last looked at it, as reported by KVCache.toXML
+     */
+    public boolean isReferenced(int slot) {
+        return referenced[slot];
+    }
+
+    /**
+     * Records that an empty slot, or the victim just returned by evict, now
+     * holds a new entry.
+     *
+     * @param setId set of the slot
+     * @param slot slot that was filled
+     * @param hash hash code of the new key
+     */
+    public abstract void inserted(int setId, int slot, int hash);
+
+    /**
+     * Records that the entry in a slot was deleted or expired.
+     *
+     * @param setId set of the slot
+     * @param slot slot that was emptied
+     */
+    public abstract void removed(int setId, int slot);
+
+    /**
+     * Chooses the entry to drop from a full set and forgets it.
+     *
+     * @param setId set that is full
+     * @return slot of the victim, which the cache then refills
+     */
+    public abstract int evict(int setId);
+
+    /**
+     * Records that the victim just returned by evict was kept after all,
+     * because an admission filter turned the new entry away. By default it
+     * is treated as newly inserted.
+     *
+     * @param setId set of the slot
+     * @param slot the victim
+     * @param hash hash code of the victim's key
+     */
+    public void retained(int setId, int slot, int hash) {
+        inserted(setId, slot, hash);
+    }
+
+    /**
+     * Counts an entry that evict passed over because it had been used.
+     *
+     * @param setId set being evicted from
+     */
+    protected void secondChance(int setId) {
+        CacheStats s = stats;
+        if (s != null) {
+            s.add(setId, CacheStats.Counter.SECOND_CHANCES, 1);
+        }
+    }
+
+    void setStats(CacheStats stats) {
+        this.stats = stats;
+    }
+
+}
@@ -0,0 +1,101 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often each key has been looked up
+ * recently, for use as a TinyLFU admission filter in front of KVCache. Each
+ * key maps to one 4-bit counter in each of four rows and its estimate is the
+ * smallest of them. Once as many lookups as ten times the cache size have
+ * been counted, every counter is halved so that old popularity fades.
+ *
+ * Counters are updated with compare-and-set, so any number of threads may
+ * count and estimate at once; a count racing with the halving may be lost.
+ */
+public class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long HALF_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {
+        0x97cb3127, 0xb5ad4ece, 0x6c8e9cf5, 0x2545f491
+    };
+
+    private final AtomicLongArray table;
+    private final int counterMask;
+    private final int sampleSize;
+    private final AtomicInteger counted = new AtomicInteger();
+
+    /**
+     * @param maximumSize number of entries the cache can hold
+     */
+    public FrequencySketch(int maximumSize) {
+        int counters = 16;
+        while (counters < 4 * maximumSize && counters < (1 << 30)) {
+            counters <<= 1;
+        }
+        table = new AtomicLongArray(counters / 16);
+        counterMask = counters - 1;
+        sampleSize = Math.max(10 * maximumSize, 16);
+    }
+
+    /**
+     * Counts one lookup of a key.
+     *
+     * @param hash hash code of the key
+     */
+    public void increment(int hash) {
+        for (int row = 0; row < ROWS; row++) {
+            int counter = indexOf(hash, row);
+            int index = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            while (true) {
+                long word = table.get(index);
+                if (((word >>> shift) & 0xf) == MAX_COUNT
+                        || table.compareAndSet(index, word, word + (1L << shift))) {
+                    break;
+                }
+            }
+        }
+        if (counted.incrementAndGet() == sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * @param hash hash code of a key
+     * @return estimated number of recent lookups of the key, at most 15
+     */
+    public int frequency(int hash) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            int counter = indexOf(hash, row);
+            int count = (int) ((table.get(counter >>> 4) >>> ((counter & 15) << 2)) & 0xf);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /* Halves every counter and the number of lookups counted */
+    private void age() {
+        for (int i = 0; i < table.length(); i++) {
+            while (true) {
+                long word = table.get(i);
+                if (table.compareAndSet(i, word, (word >>> 1) & HALF_MASK)) {
+                    break;
+                }
+            }
+        }
+        counted.addAndGet(-sampleSize / 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & counterMask;
+    }
+
+}
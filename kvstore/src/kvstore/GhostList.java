@@ -0,0 +1,60 @@
+package kvstore;
+
+/**
+ * Remembers the hashes of keys recently evicted from each cache set, so that
+ * a policy can tell when a key comes back soon after being dropped. Each set
+ * keeps up to a fixed number of hashes, forgetting the oldest first. Hashes
+ * can collide, which at worst makes a policy treat a new key as returning.
+ */
+class GhostList {
+
+    private final int capacity;
+    private final int[] hashes;
+    private final boolean[] present;
+    private final int[] nextPos;
+    private final int[] count;
+
+    GhostList(int numSets, int capacity) {
+        this.capacity = capacity;
+        hashes = new int[numSets * capacity];
+        present = new boolean[numSets * capacity];
+        nextPos = new int[numSets];
+        count = new int[numSets];
+    }
+
+    int size(int setId) {
+        return count[setId];
+    }
+
+    void add(int setId, int hash) {
+        int i = setId * capacity + nextPos[setId];
+        if (present[i]) {
+            count[setId]--;
+        }
+        hashes[i] = hash;
+        present[i] = true;
+        count[setId]++;
+        nextPos[setId] = (nextPos[setId] + 1) % capacity;
+    }
+
+    /* Forgets the hash added last, which must still be remembered */
+    void removeNewest(int setId) {
+        nextPos[setId] = (nextPos[setId] + capacity - 1) % capacity;
+        present[setId * capacity + nextPos[setId]] = false;
+        count[setId]--;
+    }
+
+    /* Forgets a hash if it is remembered, and reports whether it was */
+    boolean remove(int setId, int hash) {
+        int base = setId * capacity;
+        for (int i = base; i < base + capacity; i++) {
+            if (present[i] && hashes[i] == hash) {
+                present[i] = false;
+                count[setId]--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,31 @@
+package kvstore;
+
+/**
+ * Interface for the ways a ServerClientHandler can run its jobs, such as a
+ * fixed ThreadPool or a ThreadPerJobExecutor.
+ */
+public interface JobExecutor {
+
+    /**
+     * Arranges for a job to be run on some thread other than the caller's.
+     * May block while the executor is at capacity.
+     *
+     * @param r job that has to be executed
+     * @throws InterruptedException if thread is interrupted while in blocked
+     *         state
+     * @throws java.util.concurrent.RejectedExecutionException if the executor
+     *         turns the job away rather than waiting for capacity
+     */
+    public void addJob(Runnable r) throws InterruptedException;
+
+    /**
+     * Arranges for a job to be run on some other thread if that can be done
+     * without waiting. Safe to call from a job running on this executor.
+     *
+     * @param r job that has to be executed
+     * @return whether the job was accepted; false if the executor is at
+     *         capacity or shut down
+     */
+    public boolean offerJob(Runnable r);
+
+}
@@ -1,34 +1,77 @@
 package kvstore;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import javax.xml.parsers.*;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
- * the eviction policy.
+ * the eviction policy, second-chance replacement unless another
+ * EvictionPolicy is given.
+ *
+ * Each set has a read-write lock. Lookups only need the shared read lock, so
+ * reads of hot keys in the same set run in parallel; the eviction policy
+ * only records hits in ways that are harmless to race. Puts, deletes and
+ * evictions take the exclusive write lock.
+ *
+ * An optional FrequencySketch can act as a TinyLFU admission filter. Every
+ * get is counted in it, and a new key only takes the place of the victim
+ * chosen by the eviction policy if it is estimated to have been looked up
+ * more often, so one-off scans cannot flush out popular keys.
+ *
+ * Each set can also be given a budget in bytes, for when values vary too
+ * much in size for a count of entries to bound memory. Entries are then
+ * evicted until the incoming one fits, and an entry larger than the whole
+ * budget is not cached. The size of an entry is estimated by weigh.
+ *
+ * The entries of all sets live in parallel arrays indexed by slot, with the
+ * slots of set s running from s * maxElemsPerSet. A slot whose key is null is
+ * empty. Each key's hash is kept alongside it so most mismatches are rejected
+ * without calling equals. The built-in policies keep their queues threaded
+ * through the slots by index, so get, put, del and eviction allocate nothing.
+ *
+ * Hits, misses, insertions, evictions, second chances and waits for the set
+ * locks are counted per set in a CacheStats, see getStats.
+ *
+ * A key's set is chosen from its hash code put through a murmur3-style
+ * finalizer, so keys that differ only in a few characters, such as
+ * "user:123:name" and "user:124:name", still spread over all the sets. With a
+ * power-of-two number of sets the set is picked by masking, without a
+ * division.
  */
-public class KVCache implements KeyValueInterface {
+public class KVCache implements KVCacheInterface {
+	
+	private static final int NONE = SlotQueues.NONE;
+	
+	/* Rough per-entry cost of the slot arrays and the two String objects */
+	static final int ENTRY_OVERHEAD_BYTES = 64;
 	
 	private int numSets = 100;
 	private int maxElemsPerSet = 10;
-	private Entry[][] cache;
-	private LinkedList<Entry>[] entryQueue;
-	private ReentrantLock[] cacheLock;
+	private Lock[] readLocks;
+	private Lock[] writeLocks;
+	private CacheStats stats;
+	private long ttlMillis = 0;
+	private EvictionPolicy policy;
+	private volatile FrequencySketch admissionFilter;
+	private long maxBytesPerSet = 0;
+	
+	/* Per slot */
+	private String[] keys;
+	private String[] values;
+	private int[] hashes;
+	private long[] expiresAt;
+	private long[] weights;
+	
+	/* Per set: total weight of its entries; read without the lock by getters */
+	private long[] setBytes;
 	
     /**
      * Constructs a second-chance-replacement cache.
@@ -36,28 +79,112 @@ public class KVCache implements KeyValueInterface {
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
-        // implement me
+        this(numSets, maxElemsPerSet, 0);
+    }
+
+    /**
+     * Constructs a second-chance-replacement cache whose entries expire a
+     * fixed time after they were last put. An expired entry is treated as
+     * absent and its slot is reused by a later put.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param ttlMillis lifetime of an entry in milliseconds, or 0 for
+     *        entries that never expire
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long ttlMillis) {
+        this(numSets, maxElemsPerSet, ttlMillis, EvictionPolicy.Type.CLOCK);
+    }
+
+    /**
+     * Constructs a cache using one of the built-in eviction policies.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param ttlMillis lifetime of an entry in milliseconds, or 0 for
+     *        entries that never expire
+     * @param type eviction policy to use
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long ttlMillis,
+            EvictionPolicy.Type type) {
+        this(ttlMillis, type.create(numSets, maxElemsPerSet));
+    }
+
+    /**
+     * Constructs a cache with a budget in bytes for the whole cache, split
+     * evenly between the sets, which are locked and evicted independently.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the most entries each set can hold whatever
+     *        their size
+     * @param ttlMillis lifetime of an entry in milliseconds, or 0 for
+     *        entries that never expire
+     * @param type eviction policy to use
+     * @param maxBytes most bytes, as estimated by weigh, the entries of the
+     *        cache may take up, or 0 to limit sets by count alone
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long ttlMillis,
+            EvictionPolicy.Type type, long maxBytes) {
+        this(ttlMillis, type.create(numSets, maxElemsPerSet),
+                (maxBytes > 0) ? Math.max(1, maxBytes / numSets) : 0);
+    }
+
+    /**
+     * Constructs a cache using the given eviction policy, which must not be
+     * shared with any other cache. The shape of the cache is the shape the
+     * policy was made for.
+     *
+     * @param ttlMillis lifetime of an entry in milliseconds, or 0 for
+     *        entries that never expire
+     * @param policy eviction policy to use
+     */
+    public KVCache(long ttlMillis, EvictionPolicy policy) {
+        this(ttlMillis, policy, 0);
+    }
+
+    /**
+     * Constructs a cache using the given eviction policy and a budget in
+     * bytes for each set.
+     *
+     * @param ttlMillis lifetime of an entry in milliseconds, or 0 for
+     *        entries that never expire
+     * @param policy eviction policy to use
+     * @param maxBytesPerSet most bytes, as estimated by weigh, the entries
+     *        of each set may take up, or 0 to limit sets by count alone
+     */
+    public KVCache(long ttlMillis, EvictionPolicy policy, long maxBytesPerSet) {
+    	int numSets = policy.getNumSets();
+    	int maxElemsPerSet = policy.getMaxElemsPerSet();
+    	this.policy = policy;
+    	this.ttlMillis = ttlMillis;
+    	this.maxBytesPerSet = maxBytesPerSet;
     	this.numSets = numSets;
     	this.maxElemsPerSet = maxElemsPerSet;
-    	cache = new Entry[numSets][];
-    	entryQueue =(LinkedList<Entry>[]) new LinkedList<?>[numSets];
-    	cacheLock = new ReentrantLock[numSets];
+    	int slots = numSets * maxElemsPerSet;
+    	keys = new String[slots];
+    	values = new String[slots];
+    	hashes = new int[slots];
+    	expiresAt = new long[slots];
+    	weights = new long[slots];
+    	setBytes = new long[numSets];
+    	stats = new CacheStats(numSets);
+    	policy.setStats(stats);
+    	readLocks = new Lock[numSets];
+    	writeLocks = new Lock[numSets];
     	for(int i = 0; i < numSets; i++){
-    		cache[i] = new Entry[maxElemsPerSet];
-    		entryQueue[i] = new LinkedList<Entry>();
-    		cacheLock[i] = new ReentrantLock();
-    		for(int j = 0; j < maxElemsPerSet; j++){
-    			cache[i][j] = new Entry();
-    		}
+    		ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    		readLocks[i] = new TimedLock(lock.readLock(), stats, i);
+    		writeLocks[i] = new TimedLock(lock.writeLock(), stats, i);
     	}
     }
 
     /**
      * Retrieves an entry from the cache.
      * Assumes access to the corresponding set has already been locked by the
-     * caller of this method.
+     * caller of this method, with either the read lock or the write lock.
+     * Does not change the layout of the set, so an expired entry is left in
+     * place until a later put reuses its slot.
      *
      * @param  key the key whose associated value is to be returned.
      * @return the value associated to this key or null if no value is
@@ -66,16 +193,19 @@ public class KVCache implements KeyValueInterface {
     @Override
     public String get(String key) {
         // implement me
-        String res = null;
-        int setId = this.getSetId(key);
-        for(int i = 0; i < this.maxElemsPerSet; i++){
-        	Entry entry = cache[setId][i];
-        	if(entry.valid && entry.key.equals(key)){
-        		entry.referenceBit = true;
-        		res = entry.value;
-        	}
+        FrequencySketch sketch = admissionFilter;
+        if(sketch != null){
+        	sketch.increment(key.hashCode());
         }
-        return res;
+        int slot = find(key);
+        if(slot == NONE || isExpired(slot)){
+        	stats.add(this.getSetId(key), CacheStats.Counter.MISSES, 1);
+        	return null;
+        }
+        int setId = slot / maxElemsPerSet;
+        stats.add(setId, CacheStats.Counter.HITS, 1);
+        policy.accessed(setId, slot);
+        return values[slot];
     }
 
     /**
@@ -84,11 +214,11 @@ public class KVCache implements KeyValueInterface {
      * replaced by the new entry. When an entry is replaced, its reference bit
      * will be set to True. If the set is full, an entry is removed from
      * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
+     * will be inserted behind all existing entries. Expired entries count as
+     * free slots. With a byte budget, entries are evicted until the new one
+     * fits. With an admission filter, a new key that is no more popular than
+     * the first victim is not cached at all. Assumes the write lock for the
+     * corresponding set has already been acquired by the caller of this
      * method.
      *
      * @param key the key with which the specified value is to be associated
@@ -98,71 +228,222 @@ public class KVCache implements KeyValueInterface {
     public void put(String key, String value) {
         // implement me
     	int setId = this.getSetId(key);
-    	Entry emptyEntry = null;
-    	for (int i = 0; i < this.maxElemsPerSet; i++){
-    		Entry entry = cache[setId][i];
-    		if(entry.valid){
-    			if(entry.key.equals(key)){
-    				entry.value = value;
-    				entry.referenceBit = true;
-    				return;
+    	int hash = key.hashCode();
+    	int base = setId * maxElemsPerSet;
+    	long weight = weigh(key, value);
+    	int emptySlot = NONE;
+    	for(int slot = base; slot < base + maxElemsPerSet; slot++){
+    		if(keys[slot] == null){
+    			emptySlot = slot;
+    		}else if(hashes[slot] == hash && keys[slot].equals(key)){
+    			if(!fits(setId, weight - weights[slot])){
+    				// make room as for a new entry
+    				remove(setId, slot);
+    				emptySlot = slot;
+    				break;
     			}
-    		}else{
-    			emptyEntry = entry;
+    			values[slot] = value;
+    			setBytes[setId] += weight - weights[slot];
+    			weights[slot] = weight;
+    			policy.accessed(setId, slot);
+    			expiresAt[slot] = expiryFromNow();
+    			return;
+    		}else if(isExpired(slot)){
+    			remove(setId, slot);
+    			emptySlot = slot;
     		}
     	}
-    	if(emptyEntry != null){
-    		emptyEntry.key = key;
-    		emptyEntry.value = value;
-    		emptyEntry.valid = true;
-    		emptyEntry.referenceBit = false;
-    		entryQueue[setId].addLast(emptyEntry);
+    	if(maxBytesPerSet > 0 && weight > maxBytesPerSet){
     		return;
-    	}else{
-    		Entry entry = entryQueue[setId].removeFirst();
-    		while(entry.referenceBit){
-    			entry.referenceBit = false;
-    			entryQueue[setId].addLast(entry);
-    			entry = entryQueue[setId].removeFirst();
+    	}
+    	int slot = emptySlot;
+    	boolean first = true;
+    	while(slot == NONE || !fits(setId, weight)){
+    		int victim = policy.evict(setId);
+    		FrequencySketch sketch = admissionFilter;
+    		if(first && sketch != null && sketch.frequency(hash) <= sketch.frequency(hashes[victim])){
+    			policy.retained(setId, victim, hashes[victim]);
+    			return;
     		}
-    		entry.key = key;
-    		entry.value = value;
-    		entryQueue[setId].addLast(entry);
-    		return;
+    		first = false;
+    		clear(setId, victim);
+    		stats.add(setId, CacheStats.Counter.EVICTIONS, 1);
+    		if(slot == NONE){
+    			slot = victim;
+    		}
+    	}
+    	keys[slot] = key;
+    	values[slot] = value;
+    	hashes[slot] = hash;
+    	weights[slot] = weight;
+    	setBytes[setId] += weight;
+    	expiresAt[slot] = expiryFromNow();
+    	policy.inserted(setId, slot, hash);
+    	stats.add(setId, CacheStats.Counter.INSERTIONS, 1);
+    	stats.add(setId, CacheStats.Counter.ENTRIES, 1);
+    }
+
+    /**
+     * Estimates the memory taken by a cache entry: two bytes a character for
+     * the key and value plus ENTRY_OVERHEAD_BYTES.
+     *
+     * @param key key of the entry
+     * @param value value of the entry
+     * @return estimated size of the entry in bytes
+     */
+    static long weigh(String key, String value) {
+    	return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+    }
+
+    /**
+     * @return estimated bytes taken by the entries of the whole cache, by
+     *         weigh; a gauge that may be slightly out of date
+     */
+    public long getBytesUsed() {
+    	long total = 0;
+    	for(int i = 0; i < numSets; i++){
+    		total += setBytes[i];
     	}
+    	return total;
+    }
+
+    /**
+     * @return most bytes the entries of each set may take up, or 0 if sets
+     *         are limited by count alone
+     */
+    public long getMaxBytesPerSet() {
+    	return maxBytesPerSet;
+    }
+
+    /* Whether the set can take on extra bytes within its budget */
+    private boolean fits(int setId, long extra) {
+    	return maxBytesPerSet <= 0 || setBytes[setId] + extra <= maxBytesPerSet;
     }
 
     /**
      * Removes an entry from this cache.
-     * Assumes access to the corresponding set has already been locked by the
-     * caller of this method. Does nothing if called on a key not in the cache.
+     * Assumes the write lock for the corresponding set has already been
+     * acquired by the caller of this method. Does nothing if called on a key
+     * not in the cache.
      *
      * @param key key with which the specified value is to be associated
      */
     @Override
     public void del(String key) {
         // implement me
-    	int setId = this.getSetId(key);
-    	for(int i = 0; i < this.maxElemsPerSet; i++){
-    		Entry entry = cache[setId][i];
-    		if(entry.valid && entry.key.equals(key)){
-    			entry.valid = false;
-    			entryQueue[setId].remove(entry);
+    	int slot = find(key);
+    	if(slot != NONE){
+    		remove(this.getSetId(key), slot);
+    	}
+    }
+
+    /**
+     * Sets the admission filter consulted when a new key would evict an
+     * entry. Only gets are counted in it, so it should be sized for this
+     * cache and not shared.
+     *
+     * @param sketch filter to use, or null to cache every new key
+     */
+    public void setAdmissionFilter(FrequencySketch sketch) {
+    	this.admissionFilter = sketch;
+    }
+
+    /**
+     * @return the admission filter, or null if there is none
+     */
+    public FrequencySketch getAdmissionFilter() {
+    	return admissionFilter;
+    }
+
+    /* Slot holding key, expired or not, or NONE */
+    private int find(String key) {
+    	int hash = key.hashCode();
+    	int base = this.getSetId(key) * maxElemsPerSet;
+    	for(int slot = base; slot < base + maxElemsPerSet; slot++){
+    		String k = keys[slot];
+    		if(k != null && hashes[slot] == hash && k.equals(key)){
+    			return slot;
     		}
     	}
+    	return NONE;
+    }
+
+    /* Empties a slot and tells the policy */
+    private void remove(int setId, int slot) {
+    	policy.removed(setId, slot);
+    	clear(setId, slot);
+    }
+
+    /* Empties a slot the policy has already forgotten */
+    private void clear(int setId, int slot) {
+    	keys[slot] = null;
+    	values[slot] = null;
+    	setBytes[setId] -= weights[slot];
+    	weights[slot] = 0;
+    	stats.add(setId, CacheStats.Counter.ENTRIES, -1);
     }
 
     /**
      * Get a lock for the set corresponding to a given key.
      * The lock should be used by the caller of the get/put/del methods
-     * so that different sets can be modified in parallel.
+     * so that different sets can be modified in parallel. It is exclusive:
+     * the write lock of the set.
      *
      * @param  key key to determine the lock to return
      * @return lock for the set that contains the key
      */
     public Lock getLock(String key) {
         // implement me
-        return cacheLock[this.getSetId(key)];
+        return writeLocks[this.getSetId(key)];
+    }
+
+    /**
+     * Get the shared lock for the set corresponding to a given key. Holding
+     * it allows calls to get, but not to put or del, and any number of
+     * threads can hold it at once. It cannot be upgraded to the lock from
+     * getLock; release it first.
+     *
+     * @param  key key to determine the lock to return
+     * @return read lock for the set that contains the key
+     */
+    public Lock getReadLock(String key) {
+        return readLocks[this.getSetId(key)];
+    }
+
+    /**
+     * Get the locks, as from getLock, for the sets containing a group of
+     * keys, each lock once and ordered by set id. Callers that need several
+     * sets at the same time must acquire the locks in this order so that they
+     * cannot deadlock.
+     *
+     * @param  keys keys to determine the locks to return
+     * @return locks for the sets that contain the keys, in set order
+     */
+    public List<Lock> getLocks(Collection<String> keys) {
+        TreeSet<Integer> setIds = new TreeSet<Integer>();
+        for (String key : keys) {
+            setIds.add(this.getSetId(key));
+        }
+        List<Lock> locks = new ArrayList<Lock>(setIds.size());
+        for (int setId : setIds) {
+            locks.add(writeLocks[setId]);
+        }
+        return locks;
+    }
+
+    /**
+     * @return the counters of this cache, updated as it is used
+     */
+    public CacheStats getStats() {
+    	return stats;
+    }
+
+    private boolean isExpired(int slot) {
+    	return expiresAt[slot] != 0 && System.currentTimeMillis() >= expiresAt[slot];
+    }
+
+    private long expiryFromNow() {
+    	return (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : 0;
     }
 
     /**
@@ -172,7 +453,39 @@ public class KVCache implements KeyValueInterface {
      * @return set of the key
      */
     private int getSetId(String key) {
-        return Math.abs(key.hashCode()) % numSets;
+        return setIndex(key.hashCode(), numSets);
+    }
+
+    /**
+     * Mixes the bits of a hash code with the murmur3 finalizer, so that every
+     * input bit affects every output bit.
+     *
+     * @param  h hash code to mix
+     * @return the mixed hash
+     */
+    static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Get the set for a hash code. Never negative, even for
+     * Integer.MIN_VALUE.
+     *
+     * @param  hash hash code of a key
+     * @param  numSets the number of sets to choose from
+     * @return set id from 0 to numSets - 1
+     */
+    static int setIndex(int hash, int numSets) {
+        int h = spread(hash);
+        if ((numSets & (numSets - 1)) == 0) {
+            return h & (numSets - 1);
+        }
+        return (h >>> 1) % numSets;
     }
 
     /**
@@ -182,53 +495,36 @@ public class KVCache implements KeyValueInterface {
     public String toXML() {
         // implement me
     	try {
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			Document doc = builder.newDocument();
-			Element KVCache = doc.createElement("KVCache");
-			doc.appendChild(KVCache);
-			for(int i = 0; i < this.numSets; i++){
-				Element Set = doc.createElement("Set");
-				Set.setAttribute("Id", "" + i);
-				KVCache.appendChild(Set);
-				for(int j = 0; j < this.maxElemsPerSet; j++){
-					Entry entry = cache[i][j];
-					if(entry.valid){
-						Element CacheEntry = doc.createElement("CacheEntry");
-						CacheEntry.setAttribute("isReferenced", ""+entry.referenceBit);
-						Element Key = doc.createElement("Key");
-						Element Value = doc.createElement("Value");
-						Key.appendChild(doc.createTextNode(entry.key));
-						Value.appendChild(doc.createTextNode(entry.value));
-						CacheEntry.appendChild(Key);
-						CacheEntry.appendChild(Value);
-					}
-				}
-			}
-			
-			return KVMessage.printDoc(doc);
-		} catch (ParserConfigurationException e) {
-			// TODO Auto-generated catch block
-			return null;
-		}
+    		StringWriter sw = new StringWriter();
+    		XMLWriter xml = new XMLWriter(sw);
+    		xml.startDocument(false);
+    		xml.startElement("KVCache");
+    		for(int i = 0; i < this.numSets; i++){
+    			xml.startElement("Set");
+    			xml.attribute("Id", "" + i);
+    			int base = i * this.maxElemsPerSet;
+    			for(int slot = base; slot < base + this.maxElemsPerSet; slot++){
+    				if(keys[slot] != null){
+    					xml.startElement("CacheEntry");
+    					xml.attribute("isReferenced", "" + policy.isReferenced(slot));
+    					xml.textElement("Key", keys[slot]);
+    					xml.textElement("Value", values[slot]);
+    					xml.endElement();
+    				}
+    			}
+    			xml.endElement();
+    		}
+    		xml.endDocument();
+    		return sw.toString();
+    	} catch (IOException e) {
+    		// a StringWriter does not throw
+    		return null;
+    	}
     }
 
     @Override
     public String toString() {
         return this.toXML();
     }
-    
-    private class Entry{
-    	public String key;
-    	public String value;
-    	public boolean referenceBit;
-    	public boolean valid;
-    	
-    	public Entry(){
-    		this.valid = false;
-    		this.referenceBit = false;
-    		this.key = "";
-    		this.value = "";
-    	}
-    }
 
 }
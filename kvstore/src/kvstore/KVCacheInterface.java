@@ -0,0 +1,68 @@
+package kvstore;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A set-associative cache that KVServer can sit in front of its store. The
+ * caller locks the set of a key around each get, put and del; see KVCache.
+ */
+public interface KVCacheInterface extends KeyValueInterface {
+
+    /**
+     * @param key the key whose associated value is to be returned
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    @Override
+    public String get(String key);
+
+    /**
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     */
+    @Override
+    public void put(String key, String value);
+
+    /**
+     * @param key key whose entry is to be removed
+     */
+    @Override
+    public void del(String key);
+
+    /**
+     * @param  key key to determine the lock to return
+     * @return exclusive lock for the set that contains the key
+     */
+    public Lock getLock(String key);
+
+    /**
+     * @param  key key to determine the lock to return
+     * @return shared lock for the set that contains the key, enough for get
+     */
+    public Lock getReadLock(String key);
+
+    /**
+     * @param  keys keys to determine the locks to return
+     * @return exclusive locks for the sets that contain the keys, each once
+     *         and in the order they must be acquired
+     */
+    public List<Lock> getLocks(Collection<String> keys);
+
+    /**
+     * @return estimated bytes taken by the entries of the cache
+     */
+    public long getBytesUsed();
+
+    /**
+     * @return per-set counters of hits, misses, evictions and lock waits
+     */
+    public CacheStats getStats();
+
+    /**
+     * @return the contents of the cache as XML
+     */
+    public String toXML();
+
+}
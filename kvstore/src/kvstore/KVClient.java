@@ -2,10 +2,29 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Client API used to issue requests to key-value server.
@@ -14,6 +33,26 @@ public class KVClient implements KeyValueInterface {
 
     private String server;
     private int port;
+    private volatile boolean binaryProtocol = false;
+
+    /* Persistent connections used by the binary protocol, opened lazily */
+    private final ConnectionPool pool;
+
+    /* Connection shared by asynchronous requests, guarded by asyncLock */
+    private final Object asyncLock = new Object();
+    private AsyncConnection asyncConnection;
+
+    /* Optional local cache of values read or written by this client */
+    private volatile KVCache nearCache;
+
+    /*
+     * Bumped for a stripe of keys whenever this client starts a write to one
+     * of them. A value is only put in the near cache if no write to its
+     * stripe started after the request that fetched or wrote it, so a late
+     * response never overwrites the result of a newer local write.
+     */
+    private static final int GENERATION_STRIPES = 64;
+    private final AtomicLongArray writeGenerations = new AtomicLongArray(GENERATION_STRIPES);
 
     /**
      * Constructs a KVClient connected to a server.
@@ -22,21 +61,173 @@ public class KVClient implements KeyValueInterface {
      * @param port is the port on which the server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, CLIENT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server, keeping at most
+     * maxConnections binary-framed connections open at once.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param maxConnections size limit of the connection pool
+     */
+    public KVClient(String server, int port, int maxConnections) {
         this.server = server;
         this.port = port;
+        this.pool = new ConnectionPool(server, port, maxConnections,
+                CLIENT_IDLE_MILLISECONDS);
+    }
+
+    /**
+     * Selects the wire format used for requests. By default requests are sent
+     * as XML over a new connection each; when enabled they are sent as
+     * compact binary frames instead, over a pool of connections that are kept
+     * open between requests. The server answers in whichever format the
+     * request arrived in.
+     *
+     * @param binaryProtocol true to send binary frames, false for XML
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+        if (!binaryProtocol) {
+            pool.closeIdle();
+        }
+    }
+
+    /**
+     * Keeps values read or written by this client in a local cache so that
+     * repeated GETs of the same keys are answered without a round trip. This
+     * client's own PUT and DEL requests update or invalidate the cache, but
+     * writes made through other clients are only noticed once the cached
+     * entry expires, so the cache should be constructed with a TTL that
+     * bounds how stale a value may be.
+     *
+     * @param nearCache cache to use, or null to stop caching
+     */
+    public void setNearCache(KVCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    private String cachedValue(String key) {
+    	KVCache cache = nearCache;
+    	if(cache == null){
+    		return null;
+    	}
+    	Lock lock = cache.getReadLock(key);
+    	lock.lock();
+    	try{
+    		return cache.get(key);
+    	}finally{
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Puts a value in the near cache unless this client has started a write
+     * to the key since the value was requested.
+     *
+     * @param key key of the value
+     * @param value value fetched or written
+     * @param generation from generation or invalidate, taken before the
+     *        request was sent
+     */
+    private void cacheValue(String key, String value, long generation) {
+    	KVCache cache = nearCache;
+    	if(cache == null){
+    		return;
+    	}
+    	Lock lock = cache.getLock(key);
+    	lock.lock();
+    	try{
+    		// writes to the key bump the generation under this same lock
+    		if(writeGenerations.get(stripe(key)) == generation){
+    			cache.put(key, value);
+    		}
+    	}finally{
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Drops a key from the near cache as a write to it starts, so that no
+     * response to an earlier request can put an older value back.
+     *
+     * @param key key being written
+     * @return generation with which the write may cache its own value
+     */
+    private long invalidate(String key) {
+    	KVCache cache = nearCache;
+    	if(cache == null){
+    		return writeGenerations.incrementAndGet(stripe(key));
+    	}
+    	Lock lock = cache.getLock(key);
+    	lock.lock();
+    	try{
+    		cache.del(key);
+    		return writeGenerations.incrementAndGet(stripe(key));
+    	}finally{
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * @param key key about to be read from the server
+     * @return generation with which the value read may be cached
+     */
+    private long generation(String key) {
+    	return writeGenerations.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+    	return KVCache.spread(key.hashCode()) & (GENERATION_STRIPES - 1);
     }
 
     private void checkKey(String key) throws KVException{
     	if(key == null || key.length() == 0){
     		throw new KVException(new KVMessage(RESP, ERROR_INVALID_KEY));
     	}
+    	if(!XMLWriter.isValidText(key)){
+    		throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+    	}
     }
     private void checkValue(String value) throws KVException{
     	if(value == null || value.length() == 0){
     		throw new KVException(new KVMessage(RESP, ERROR_INVALID_VALUE));
     	}
+    	if(!XMLWriter.isValidText(value)){
+    		throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+    	}
     }
     
+    /**
+     * Checks the response to a PUT or DEL request.
+     *
+     * @param  respMsg response from the server
+     * @throws KVException carrying the error if the request did not succeed
+     */
+    private static void checkSuccess(KVMessage respMsg) throws KVException {
+    	if(!SUCCESS.equals(respMsg.getMessage())){
+    		KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
+    		throw new KVException(excpMsg);
+    	}
+    }
+
+    /**
+     * Extracts the value from the response to a GET request.
+     *
+     * @param  respMsg response from the server
+     * @return the value returned
+     * @throws KVException carrying the error if the request did not succeed
+     */
+    private static String valueOf(KVMessage respMsg) throws KVException {
+    	if(respMsg.getValue() == null){
+    		KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
+    		throw new KVException(excpMsg);
+    	}
+    	return respMsg.getValue();
+    }
+
     /**
      * Creates a socket connected to the server to make a request.
      *
@@ -79,6 +270,461 @@ public class KVClient implements KeyValueInterface {
 		}
     }
 
+    /**
+     * Sends a request and waits for the response, using the wire format
+     * selected by setBinaryProtocol. XML requests use a fresh connection
+     * each; binary requests borrow a persistent connection from the pool.
+     *
+     * @param  request KVMessage to send
+     * @return KVMessage response from the server
+     * @throws KVException if the request could not be sent or no valid
+     *         response was received
+     */
+    private KVMessage sendRequest(KVMessage request) throws KVException {
+        if (binaryProtocol) {
+            List<KVMessage> requests = new ArrayList<KVMessage>(1);
+            requests.add(request);
+            return pipeline(requests).get(0);
+        }
+        Socket socket = connectHost();
+        try {
+            request.sendMessage(socket);
+            return new KVMessage(socket);
+        } finally {
+            closeHost(socket);
+        }
+    }
+
+    /**
+     * Sends several requests back to back over a pooled binary-framed
+     * connection, then reads their responses, which arrive in request order.
+     * If a connection that was left open from an earlier call turns out to
+     * have been closed by the server, the batch is retried once on a fresh
+     * connection. A connection only counts as closed if writing to it failed
+     * or it ended before the first byte of any response, when the server
+     * cannot have carried out the requests; any other failure is thrown, so
+     * that no request is ever carried out twice.
+     *
+     * @param  requests KVMessages to send
+     * @return KVMessage responses, one per request, in the same order
+     * @throws KVException if the requests could not be sent or not every
+     *         response was received
+     */
+    List<KVMessage> pipeline(List<KVMessage> requests) throws KVException {
+        ConnectionPool.Connection conn = pool.borrow();
+        try {
+            List<KVMessage> responses = exchangeFrames(conn, requests);
+            pool.release(conn);
+            return responses;
+        } catch (ConnectionClosedException e) {
+            pool.discard(conn);
+            if (!conn.isReused()) {
+                throw e;
+            }
+        } catch (KVException e) {
+            pool.discard(conn);
+            throw e;
+        }
+        conn = pool.borrow();
+        try {
+            List<KVMessage> responses = exchangeFrames(conn, requests);
+            pool.release(conn);
+            return responses;
+        } catch (KVException e) {
+            pool.discard(conn);
+            throw e;
+        }
+    }
+
+    private List<KVMessage> exchangeFrames(ConnectionPool.Connection conn,
+            List<KVMessage> requests) throws KVException {
+        try {
+            for (KVMessage request : requests) {
+                request.writeFrame(conn.out);
+            }
+            conn.out.flush();
+        } catch (KVException e) {
+            if (ERROR_COULD_NOT_SEND_DATA.equals(e.getKVMessage().getMessage())) {
+                throw new ConnectionClosedException(ERROR_COULD_NOT_SEND_DATA);
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new ConnectionClosedException(ERROR_COULD_NOT_SEND_DATA);
+        }
+        awaitResponse(conn.in);
+        List<KVMessage> responses = new ArrayList<KVMessage>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            KVMessage respMsg = KVMessage.receiveFrame(conn.in);
+            if (respMsg == null) {
+                throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_RECEIVE_DATA));
+            }
+            responses.add(respMsg);
+        }
+        return responses;
+    }
+
+    /**
+     * Waits for the first byte of a response without consuming it.
+     *
+     * @throws ConnectionClosedException if the connection ended, or was
+     *         reset, before anything arrived
+     * @throws KVException with ERROR_SOCKET_TIMEOUT if nothing arrived in
+     *         time, after which the requests may still be carried out
+     */
+    private static void awaitResponse(InputStream in) throws KVException {
+        try {
+            in.mark(1);
+            if (in.read() < 0) {
+                throw new ConnectionClosedException(ERROR_COULD_NOT_RECEIVE_DATA);
+            }
+            in.reset();
+        } catch (SocketTimeoutException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_SOCKET_TIMEOUT));
+        } catch (IOException e) {
+            throw new ConnectionClosedException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Thrown when a connection is found closed before the server could have
+     * acted on anything sent over it, so the requests are safe to resend.
+     */
+    private static class ConnectionClosedException extends KVException {
+
+        private static final long serialVersionUID = 1L;
+
+        ConnectionClosedException(String errorMessage) {
+            super(errorMessage);
+        }
+    }
+
+    /**
+     * Closes the idle persistent binary-framed connections, if any are open.
+     * Asynchronous requests still outstanding fail. The client remains
+     * usable; a later request opens a new connection.
+     */
+    public void close() {
+        pool.closeIdle();
+        AsyncConnection async;
+        synchronized (asyncLock) {
+            async = asyncConnection;
+        }
+        if (async != null) {
+            async.discard(new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CLOSE)));
+        }
+    }
+
+    /**
+     * Issues a PUT request to the server without waiting for the response.
+     * Asynchronous requests always use the binary protocol and share a single
+     * connection, so any number of them can be outstanding at once.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @return Future that completes once the server has stored the pair; its
+     *         get methods throw an ExecutionException wrapping a KVException
+     *         if the request was not successful in any way
+     * @throws KVException if the key or value is invalid
+     */
+    public Future<Void> putAsync(String key, String value) throws KVException {
+    	checkKey(key);
+    	checkValue(value);
+    	KVMessage putMsg = new KVMessage(PUT_REQ);
+    	putMsg.setKey(key);
+    	putMsg.setValue(value);
+    	final String cacheKey = key;
+    	final String cacheValue = value;
+    	final long generation = invalidate(key);
+    	return sendAsync(putMsg, new ResponseFuture<Void>() {
+    		@Override
+    		Void convert(KVMessage respMsg) throws KVException {
+    			checkSuccess(respMsg);
+    			cacheValue(cacheKey, cacheValue, generation);
+    			return null;
+    		}
+    	});
+    }
+
+    /**
+     * Issues a GET request to the server without waiting for the response.
+     * See putAsync.
+     *
+     * @param  key String to get value for in server
+     * @return Future for the value associated with key
+     * @throws KVException if the key is invalid
+     */
+    public Future<String> getAsync(String key) throws KVException {
+    	checkKey(key);
+    	final String cacheKey = key;
+    	final long generation = generation(key);
+    	ResponseFuture<String> future = new ResponseFuture<String>() {
+    		@Override
+    		String convert(KVMessage respMsg) throws KVException {
+    			String value = valueOf(respMsg);
+    			cacheValue(cacheKey, value, generation);
+    			return value;
+    		}
+    	};
+    	String cached = cachedValue(key);
+    	if(cached != null){
+    		future.succeed(cached);
+    		return future;
+    	}
+    	KVMessage getMsg = new KVMessage(GET_REQ);
+    	getMsg.setKey(key);
+    	return sendAsync(getMsg, future);
+    }
+
+    /**
+     * Issues a DEL request to the server without waiting for the response.
+     * See putAsync.
+     *
+     * @param  key String to delete value for in server
+     * @return Future that completes once the server has deleted the key
+     * @throws KVException if the key is invalid
+     */
+    public Future<Void> delAsync(String key) throws KVException {
+    	checkKey(key);
+    	KVMessage delMsg = new KVMessage(DEL_REQ);
+    	delMsg.setKey(key);
+    	final String cacheKey = key;
+    	invalidate(key);
+    	return sendAsync(delMsg, new ResponseFuture<Void>() {
+    		@Override
+    		Void convert(KVMessage respMsg) throws KVException {
+    			invalidate(cacheKey);
+    			checkSuccess(respMsg);
+    			return null;
+    		}
+    	});
+    }
+
+    /**
+     * Writes a request to the shared asynchronous connection, opening it if
+     * needed. Failures are reported through the future rather than thrown,
+     * like any other failure after the request has been accepted.
+     */
+    private <V> Future<V> sendAsync(KVMessage request, ResponseFuture<V> future) {
+    	AsyncConnection async;
+    	synchronized (asyncLock) {
+    		if (asyncConnection == null) {
+    			try {
+    				asyncConnection = new AsyncConnection(connectHost());
+    			} catch (KVException e) {
+    				future.fail(e);
+    				return future;
+    			}
+    			asyncConnection.start();
+    		}
+    		async = asyncConnection;
+    	}
+    	async.send(request, future);
+    	return future;
+    }
+
+    /**
+     * A binary-framed connection shared by asynchronous requests. Requests
+     * are written as they are issued and a reader thread matches each
+     * response to the oldest outstanding request, relying on the server to
+     * answer in order. Once anything goes wrong the connection is discarded
+     * and all its outstanding requests fail; the next request opens a new
+     * one. Idle connections are eventually closed by the server.
+     */
+    private class AsyncConnection implements Runnable {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private volatile boolean discarded = false;
+
+        /*
+         * Outstanding requests in the order they were sent. Senders append
+         * while holding this connection's monitor; the reader polls without
+         * it so that it never waits behind a sender blocked on a full socket.
+         */
+        private final ConcurrentLinkedQueue<ResponseFuture<?>> pending =
+                new ConcurrentLinkedQueue<ResponseFuture<?>>();
+
+        AsyncConnection(Socket socket) throws KVException {
+            this.socket = socket;
+            try {
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                closeHost(socket);
+                throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+            }
+        }
+
+        void start() {
+            Thread reader = new Thread(this, "KVClient-" + server + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(KVMessage request, ResponseFuture<?> future) {
+            synchronized (this) {
+                if (discarded) {
+                    future.fail(new KVException(new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA)));
+                    return;
+                }
+                future.sentAt = System.currentTimeMillis();
+                pending.add(future);
+                try {
+                    request.writeFrame(out);
+                    out.flush();
+                    return;
+                } catch (KVException e) {
+                    // fall through, the future fails with the rest
+                } catch (IOException e) {
+                    // fall through, the future fails with the rest
+                }
+            }
+            discard(new KVException(new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA)));
+        }
+
+        /**
+         * Reads responses until the connection fails. A read timeout only
+         * counts as a failure if the oldest outstanding request has been
+         * waiting for longer than TIMEOUT_MILLISECONDS.
+         */
+        @Override
+        public void run() {
+            KVException error;
+            while (true) {
+                KVMessage respMsg;
+                try {
+                    respMsg = KVMessage.receiveFrame(in);
+                } catch (KVException e) {
+                    if (ERROR_SOCKET_TIMEOUT.equals(e.getKVMessage().getMessage())
+                            && !overdue() && !discarded) {
+                        continue;
+                    }
+                    error = e;
+                    break;
+                }
+                ResponseFuture<?> future = pending.poll();
+                if (respMsg == null || future == null) {
+                    error = new KVException(new KVMessage(RESP, ERROR_COULD_NOT_RECEIVE_DATA));
+                    break;
+                }
+                future.complete(respMsg);
+            }
+            discard(error);
+        }
+
+        private boolean overdue() {
+            ResponseFuture<?> oldest = pending.peek();
+            return oldest != null && System.currentTimeMillis() - oldest.sentAt
+                    >= TIMEOUT_MILLISECONDS;
+        }
+
+        /**
+         * Closes the connection and fails every outstanding request with the
+         * given error. The socket is closed first so that a sender blocked in
+         * a write gives up its hold on this connection.
+         */
+        void discard(KVException error) {
+            synchronized (asyncLock) {
+                if (asyncConnection == this) {
+                    asyncConnection = null;
+                }
+            }
+            discarded = true;
+            try {
+                closeHost(socket);
+            } catch (KVException e) {
+                // ignore, the connection is being discarded
+            }
+            List<ResponseFuture<?>> failed = new ArrayList<ResponseFuture<?>>();
+            synchronized (this) {
+                ResponseFuture<?> future;
+                while ((future = pending.poll()) != null) {
+                    failed.add(future);
+                }
+            }
+            for (ResponseFuture<?> future : failed) {
+                future.fail(error);
+            }
+        }
+    }
+
+    /**
+     * Future for the result of an asynchronous request, completed by the
+     * reader thread of an AsyncConnection. Requests cannot be cancelled once
+     * sent.
+     */
+    private abstract static class ResponseFuture<V> implements Future<V> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private V result;
+        private KVException error;
+        long sentAt;
+
+        /**
+         * Turns the response into the result of this future.
+         *
+         * @throws KVException if the response reports an error
+         */
+        abstract V convert(KVMessage respMsg) throws KVException;
+
+        void complete(KVMessage respMsg) {
+            try {
+                result = convert(respMsg);
+            } catch (KVException e) {
+                error = e;
+            }
+            done.countDown();
+        }
+
+        void succeed(V value) {
+            result = value;
+            done.countDown();
+        }
+
+        void fail(KVException e) {
+            error = e;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            done.await();
+            return outcome();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return outcome();
+        }
+
+        private V outcome() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -92,18 +738,14 @@ public class KVClient implements KeyValueInterface {
 			checkKey(key);
 			checkValue(value);
 			
-			Socket socket = connectHost();
 			KVMessage putMsg = new KVMessage(PUT_REQ);
 			putMsg.setKey(key);
 			putMsg.setValue(value);
-			putMsg.sendMessage(socket);
-			KVMessage respMsg = new KVMessage(socket);
-			closeHost(socket);
-			if(!respMsg.getMessage().equals("Success")){
-				KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
-				throw new KVException(excpMsg);
-			}
+			long generation = invalidate(key);
+			checkSuccess(sendRequest(putMsg));
+			cacheValue(key, value, generation);
 		} catch (KVException e) {
+			invalidate(key);
 			throw e;
 		}
     }
@@ -120,19 +762,17 @@ public class KVClient implements KeyValueInterface {
         // implement me
     	try{
     		checkKey(key);
+    		String cached = cachedValue(key);
+    		if(cached != null){
+    			return cached;
+    		}
     		
-    		Socket socket = connectHost();
     		KVMessage getMsg = new KVMessage(GET_REQ);
     		getMsg.setKey(key);
-    		getMsg.sendMessage(socket);
-    		KVMessage respMsg = new KVMessage(socket);
-    		closeHost(socket);
-    		if(respMsg.getValue() == null){
-    			KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
-    			throw new KVException(excpMsg);
-    		}else{
-    			return respMsg.getValue();
-    		}
+    		long generation = generation(key);
+    		String value = valueOf(sendRequest(getMsg));
+    		cacheValue(key, value, generation);
+    		return value;
     	}catch (KVException e){
     		throw e;
     	}
@@ -150,20 +790,192 @@ public class KVClient implements KeyValueInterface {
     	try{
     		checkKey(key);
     		
-    		Socket socket = connectHost();
     		KVMessage delMsg = new KVMessage(DEL_REQ);
     		delMsg.setKey(key);
-    		delMsg.sendMessage(socket);
-    		KVMessage respMsg = new KVMessage(socket);
-    		closeHost(socket);
-    		if(!respMsg.getMessage().equals("Success")){
-    			KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
-    			throw new KVException(excpMsg);
+    		invalidate(key);
+    		try{
+    			checkSuccess(sendRequest(delMsg));
+    		}finally{
+    			invalidate(key);
     		}
     	}catch (KVException e){
     		throw e;
     	}
     }
 
+    /**
+     * Issues a batch PUT request to the server. Batches larger than
+     * MAX_BATCH_ENTRIES are split into several requests.
+     *
+     * @param  pairs keys and the values to put for them
+     * @throws KVException if the request was not successful in any way
+     */
+    public void putAll(Map<String, String> pairs) throws KVException {
+    	List<KVMessage> entries = new ArrayList<KVMessage>(pairs.size());
+    	for(Map.Entry<String, String> pair : pairs.entrySet()){
+    		checkKey(pair.getKey());
+    		checkValue(pair.getValue());
+    		KVMessage putMsg = new KVMessage(PUT_REQ);
+    		putMsg.setKey(pair.getKey());
+    		putMsg.setValue(pair.getValue());
+    		entries.add(putMsg);
+    	}
+    	// keys sharing a stripe bump it in turn, so each caches with the last
+    	Map<Integer, Long> generations = new HashMap<Integer, Long>();
+    	for(String key : pairs.keySet()){
+    		generations.put(stripe(key), invalidate(key));
+    	}
+    	try{
+    		for(KVMessage respMsg : sendBatch(MULTI_PUT_REQ, entries)){
+    			if(!SUCCESS.equals(respMsg.getMessage())){
+    				throw new KVException(new KVMessage(RESP, respMsg.getMessage()));
+    			}
+    		}
+    	}catch(KVException e){
+    		for(String key : pairs.keySet()){
+    			invalidate(key);
+    		}
+    		throw e;
+    	}
+    	for(Map.Entry<String, String> pair : pairs.entrySet()){
+    		cacheValue(pair.getKey(), pair.getValue(), generations.get(stripe(pair.getKey())));
+    	}
+    }
+
+    /**
+     * Issues a batch GET request to the server. Batches larger than
+     * MAX_BATCH_ENTRIES are split into several requests. Keys found in the
+     * near cache, if there is one, are not requested.
+     *
+     * @param  keys keys to get values for
+     * @return values of the keys that exist, in the order the keys were given;
+     *         keys that do not exist are left out
+     * @throws KVException if the request was not successful in any way
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws KVException {
+    	Map<String, String> cached = new HashMap<String, String>();
+    	List<String> misses = new ArrayList<String>(keys.size());
+    	for(String key : keys){
+    		checkKey(key);
+    		String value = cachedValue(key);
+    		if(value != null){
+    			cached.put(key, value);
+    		}else{
+    			misses.add(key);
+    		}
+    	}
+    	Map<String, Long> generations = new HashMap<String, Long>();
+    	for(String key : misses){
+    		generations.put(key, generation(key));
+    	}
+    	Map<String, String> fetched = new HashMap<String, String>();
+    	for(KVMessage respMsg : sendBatch(MULTI_GET_REQ, keyEntries(GET_REQ, misses))){
+    		if(respMsg.getValue() != null){
+    			fetched.put(respMsg.getKey(), respMsg.getValue());
+    			Long generation = generations.get(respMsg.getKey());
+    			if(generation != null){
+    				cacheValue(respMsg.getKey(), respMsg.getValue(), generation);
+    			}
+    		}else if(!ERROR_NO_SUCH_KEY.equals(respMsg.getMessage())){
+    			throw new KVException(new KVMessage(RESP, respMsg.getMessage()));
+    		}
+    	}
+    	Map<String, String> values = new LinkedHashMap<String, String>();
+    	for(String key : keys){
+    		String value = cached.containsKey(key) ? cached.get(key) : fetched.get(key);
+    		if(value != null){
+    			values.put(key, value);
+    		}
+    	}
+    	return values;
+    }
+
+    /**
+     * Issues a batch DEL request to the server. Batches larger than
+     * MAX_BATCH_ENTRIES are split into several requests. Every existing key
+     * is deleted even if some of the keys do not exist.
+     *
+     * @param  keys keys to delete
+     * @throws KVException with ERROR_NO_SUCH_KEY if any of the keys did not
+     *         exist, or if the request was not successful in any other way
+     */
+    public void delAll(Collection<String> keys) throws KVException {
+    	List<KVMessage> entries = keyEntries(DEL_REQ, keys);
+    	KVException error = null;
+    	try{
+    		for(KVMessage respMsg : sendBatch(MULTI_DEL_REQ, entries)){
+    			if(error == null && !SUCCESS.equals(respMsg.getMessage())){
+    				error = new KVException(new KVMessage(RESP, respMsg.getMessage()));
+    			}
+    		}
+    	}finally{
+    		for(String key : keys){
+    			invalidate(key);
+    		}
+    	}
+    	if(error != null){
+    		throw error;
+    	}
+    }
+
+    /**
+     * Issues a STATS request to the server for the counters of its cache.
+     *
+     * @return counters keyed "total" and "set <id>", each valued with
+     *         space-separated name=value pairs, in the server's order
+     * @throws KVException if the request was not successful in any way
+     */
+    public Map<String, String> stats() throws KVException {
+    	KVMessage respMsg = sendRequest(new KVMessage(STATS_REQ));
+    	if(!MULTI_RESP.equals(respMsg.getMsgType())){
+    		throw new KVException(new KVMessage(RESP, respMsg.getMessage()));
+    	}
+    	Map<String, String> stats = new LinkedHashMap<String, String>();
+    	for(KVMessage entry : respMsg.getEntries()){
+    		stats.put(entry.getKey(), entry.getValue());
+    	}
+    	return stats;
+    }
+
+    private List<KVMessage> keyEntries(String msgType, Collection<String> keys)
+            throws KVException {
+    	List<KVMessage> entries = new ArrayList<KVMessage>(keys.size());
+    	for(String key : keys){
+    		checkKey(key);
+    		KVMessage keyMsg = new KVMessage(msgType);
+    		keyMsg.setKey(key);
+    		entries.add(keyMsg);
+    	}
+    	return entries;
+    }
+
+    /**
+     * Sends entries as one or more batch requests of the given type.
+     *
+     * @param  msgType batch request type
+     * @param  entries single-key requests to batch up
+     * @return the per-key responses, in the same order as the entries
+     * @throws KVException if any request failed as a whole
+     */
+    private List<KVMessage> sendBatch(String msgType, List<KVMessage> entries)
+            throws KVException {
+    	List<KVMessage> responses = new ArrayList<KVMessage>(entries.size());
+    	for(int start = 0; start < entries.size(); start += MAX_BATCH_ENTRIES){
+    		int end = Math.min(entries.size(), start + MAX_BATCH_ENTRIES);
+    		KVMessage batchMsg = new KVMessage(msgType);
+    		for(KVMessage entry : entries.subList(start, end)){
+    			batchMsg.addEntry(entry);
+    		}
+    		KVMessage respMsg = sendRequest(batchMsg);
+    		if(!MULTI_RESP.equals(respMsg.getMsgType())){
+    			throw new KVException(new KVMessage(RESP, respMsg.getMessage()));
+    		}
+    		if(respMsg.getEntries().size() != end - start){
+    			throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+    		}
+    		responses.addAll(respMsg.getEntries());
+    	}
+    	return responses;
+    }
 
 }
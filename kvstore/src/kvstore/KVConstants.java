@@ -10,6 +10,25 @@ public class KVConstants {
     public static final String READY    = "ready";
     public static final String SUCCESS  = "Success";
 
+    // Batch KVMessage types, carrying one entry per key
+    public static final String MULTI_GET_REQ = "multigetreq";
+    public static final String MULTI_PUT_REQ = "multiputreq";
+    public static final String MULTI_DEL_REQ = "multidelreq";
+    public static final String MULTI_RESP    = "multiresp";
+
+    /**
+     * Largest number of keys accepted in a single batch request.
+     */
+    public static final int MAX_BATCH_ENTRIES = 1024;
+
+    /**
+     * Admin request for the server's cache statistics, with no key, value or
+     * message. Answered with a MULTI_RESP holding a RESP entry for the
+     * totals, keyed "total", and one per set, keyed "set <id>", each valued
+     * with space-separated name=value pairs.
+     */
+    public static final String STATS_REQ = "statsreq";
+
     // proj4-specific KVMessage types
     public static final String ABORT    = "abort";
     public static final String COMMIT   = "commit";
@@ -18,6 +37,44 @@ public class KVConstants {
     // Timeout value used during 2PC operations
     public static final int TIMEOUT_MILLISECONDS = 2000;
 
+    /**
+     * Leading byte of a binary-framed KVMessage. A serialized XML message can
+     * never start with this byte, so a server can tell the two wire formats
+     * apart by peeking at the first byte of a request.
+     */
+    public static final int FRAME_MAGIC = 0xB7;
+
+    /**
+     * Largest key, value or message field, in bytes, accepted in a binary
+     * frame. Generous enough for a maximum-size value encoded as UTF-8.
+     */
+    public static final int MAX_FRAME_FIELD_BYTES = 4 * 256 * 1024;
+
+    /**
+     * How long, in milliseconds, a server keeps a binary-framed connection
+     * open while waiting for the next request before closing it.
+     */
+    public static final int CONNECTION_IDLE_MILLISECONDS = 30000;
+
+    /**
+     * Most binary-framed connections a ServerClientHandler with a shared pool
+     * of workers serves at once, each on a thread of its own.
+     */
+    public static final int SERVER_MAX_CONNECTIONS = 1024;
+
+    /**
+     * Default number of binary-framed connections a KVClient keeps open to
+     * its server at most.
+     */
+    public static final int CLIENT_MAX_CONNECTIONS = 8;
+
+    /**
+     * How long, in milliseconds, a KVClient keeps an unused connection in its
+     * pool. Shorter than CONNECTION_IDLE_MILLISECONDS so that the client
+     * usually closes idle connections before the server does.
+     */
+    public static final int CLIENT_IDLE_MILLISECONDS = CONNECTION_IDLE_MILLISECONDS / 2;
+
     /**
      * Error message used if an IOException arises while parsing the
      * InputStream of a socket during deserialization of a KVMessage.
@@ -115,4 +172,26 @@ public class KVConstants {
     public static final String ERROR_INVALID_VALUE =
         "Data Error: Null or empty value";
 
+    /**
+     * Error message used if a server has no room to queue a request and turns
+     * it away rather than keeping the client waiting. The request was not
+     * carried out and may be retried later.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Server Error: Server busy, try again later";
+
+    /**
+     * Error message used if a request waited in a server's queue until after
+     * the client stopped waiting for the response, so it was not carried out.
+     */
+    public static final String ERROR_DEADLINE_EXCEEDED =
+        "Server Error: Request deadline exceeded";
+
+    /**
+     * Error message used if a request reaches a server that has been shut
+     * down, so it was not carried out.
+     */
+    public static final String ERROR_SERVER_SHUT_DOWN =
+        "Server Error: Server has been shut down";
+
 }
@@ -24,6 +24,20 @@ public class KVException extends Exception {
         this.kvm = new KVMessage(KVConstants.RESP, errorMessage);
     }
 
+    /**
+     * Construct a KVException with a particular KVMessage, optionally
+     * without a stack trace. Filling in the stack trace is most of the cost
+     * of an exception, and is not worth paying for one that reports an
+     * expected outcome such as a missing key.
+     *
+     * @param kvm KVMessage for this KVException
+     * @param writableStackTrace whether to record the stack trace
+     */
+    public KVException(KVMessage kvm, boolean writableStackTrace) {
+        super(null, null, false, writableStackTrace);
+        this.kvm = kvm;
+    }
+
     /**
      * Getter for the inner KVMessage containing the error message.
      *
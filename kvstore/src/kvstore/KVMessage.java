@@ -4,18 +4,15 @@ import static kvstore.KVConstants.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.xml.parsers.*;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 
 /**
@@ -29,6 +26,22 @@ public class KVMessage implements Serializable {
 	private String value;
 	private String message;
 
+	/*
+	 * Per-key messages carried by a batch message, in request order. The
+	 * entries of a batch request are single-key requests of the matching
+	 * type and the entries of a MULTI_RESP are RESP messages.
+	 */
+	private ArrayList<KVMessage> entries = new ArrayList<KVMessage>();
+
+	/*
+	 * How long, in milliseconds, the sender of a request will wait for the
+	 * response, counted from when the server receives it; 0 if unspecified.
+	 */
+	private int timeout = 0;
+
+	/* When a server queued this request, never sent over the network */
+	private transient long enqueueTime = 0;
+
 	public static final long serialVersionUID = 6473128480951955693L;
 
 	/**
@@ -84,77 +97,215 @@ public class KVMessage implements Serializable {
 	public KVMessage(Socket sock, int timeout) throws KVException {
 		// implement me
 		try {
-			this.message = this.key = this.value = this.msgType = null;
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
-					.newDocumentBuilder();
 			sock.setSoTimeout(timeout);
-			NoCloseInputStream ncis = new NoCloseInputStream(sock.getInputStream());
-			Document doc = builder.parse(ncis);
-			Node KVMessage = doc.getElementsByTagName("KVMessage").item(0);
-			if (KVMessage == null) {
+			parseXML(sock.getInputStream());
+		} catch (IOException e) {
+			KVMessage exceptMessage = new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+			throw new KVException(exceptMessage);
+		}
+	}
+
+	/**
+	 * Construct KVMessage by parsing XML from an InputStream that has already
+	 * been set up by the caller (for example one that has been peeked at to
+	 * detect the wire format).
+	 * 
+	 * @param in
+	 *            InputStream to receive serialized KVMessage through
+	 * @throws KVException
+	 *             if we fail to create a valid KVMessage. Please see
+	 *             KVConstants.java for possible KVException messages.
+	 */
+	public KVMessage(InputStream in) throws KVException {
+		parseXML(in);
+	}
+
+	/*
+	 * StAX factories are costly to look up, so each thread keeps its own.
+	 * DTDs are never part of a KVMessage and are not processed.
+	 */
+	private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY =
+			new ThreadLocal<XMLInputFactory>() {
+				@Override
+				protected XMLInputFactory initialValue() {
+					XMLInputFactory factory = XMLInputFactory.newInstance();
+					factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+					factory.setProperty(
+							XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+							false);
+					return factory;
+				}
+			};
+
+	/**
+	 * Parse a serialized KVMessage with a streaming pull parser, reading the
+	 * type attribute and the Key, Value and Message elements of the first
+	 * KVMessage element straight into this message's fields. Each KVPair
+	 * element directly inside it becomes an entry of a batch message.
+	 * 
+	 * @param in
+	 *            InputStream to receive serialized KVMessage through
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT, ERROR_PARSER or
+	 *             ERROR_COULD_NOT_RECEIVE_DATA
+	 */
+	private void parseXML(InputStream in) throws KVException {
+		this.message = this.key = this.value = this.msgType = null;
+		this.entries.clear();
+		XMLStreamReader reader = null;
+		try {
+			reader = INPUT_FACTORY.get().createXMLStreamReader(
+					new NoCloseInputStream(in));
+			boolean found = false;
+			int depth = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT && found) {
+					if (--depth == 0) {
+						break;
+					}
+				} else if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (!found) {
+						if (name.equals("KVMessage")) {
+							found = true;
+							depth = 1;
+							this.msgType = reader.getAttributeValue(null, "type");
+						}
+					} else if (name.equals("KVPair") && depth == 1) {
+						if (this.entries.size() == MAX_BATCH_ENTRIES) {
+							throw new KVException(new KVMessage(RESP,
+									ERROR_INVALID_FORMAT));
+						}
+						this.entries.add(parseEntry(reader));
+					} else if (name.equals("Key") && this.key == null) {
+						this.key = reader.getElementText();
+					} else if (name.equals("Value") && this.value == null) {
+						this.value = reader.getElementText();
+					} else if (name.equals("Message") && this.message == null) {
+						this.message = reader.getElementText();
+					} else if (name.equals("Timeout") && depth == 1) {
+						this.timeout = parseTimeout(reader.getElementText());
+					} else {
+						depth++;
+					}
+				}
+			}
+			if (!found) {
 				throw new KVException(new KVMessage(KVConstants.RESP,
 						KVConstants.ERROR_INVALID_FORMAT));
 			}
-			Element KVElement = (Element) KVMessage;
-			this.msgType = KVElement.getAttribute("type");
-			Node Key = KVElement.getElementsByTagName("Key").item(0);
-			Node Value = KVElement.getElementsByTagName("Value").item(0);
-			Node Message = KVElement.getElementsByTagName("Message").item(0);
-
-			if (Key != null) {
-				this.key = Key.getTextContent();
-			}
-			if (Value != null) {
-				this.value = Value.getTextContent();
+
+			String entryType = entryType(this.msgType);
+			for (KVMessage entry : this.entries) {
+				entry.msgType = entryType;
 			}
-			if (Message != null) {
-				this.message = Message.getTextContent();
+			validate();
+		} catch (XMLStreamException e) {
+			String error = (e.getNestedException() instanceof IOException)
+					? KVConstants.ERROR_COULD_NOT_RECEIVE_DATA
+					: KVConstants.ERROR_PARSER;
+			throw new KVException(new KVMessage(KVConstants.RESP, error));
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// ignore, the underlying stream is left open anyway
+				}
 			}
+		}
+	}
 
-			if (this.msgType.equals(KVConstants.PUT_REQ)) {
-				if (Key == null || Value == null || Message != null) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			} else if (this.msgType.equals(KVConstants.GET_REQ)) {
-				if (Key == null || Value != null || Message != null) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
-				if (Key == null || Value != null || Message != null) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
+	/**
+	 * Read the Key, Value and Message elements of a KVPair, leaving the reader
+	 * on the end of the KVPair. The caller sets the type of the entry.
+	 */
+	private static KVMessage parseEntry(XMLStreamReader reader)
+			throws XMLStreamException {
+		KVMessage entry = new KVMessage((String) null);
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("Key") && entry.key == null) {
+					entry.key = reader.getElementText();
+				} else if (name.equals("Value") && entry.value == null) {
+					entry.value = reader.getElementText();
+				} else if (name.equals("Message") && entry.message == null) {
+					entry.message = reader.getElementText();
+				} else {
+					depth++;
 				}
-			} else if (this.msgType.equals(KVConstants.RESP)) {
-				if (!((Key != null && Value != null && Message == null) ||
-						(Key == null && Value == null && Message != null))) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
+			}
+		}
+		return entry;
+	}
+
+	private static int parseTimeout(String text) throws KVException {
+		try {
+			int timeout = Integer.parseInt(text.trim());
+			if (timeout > 0) {
+				return timeout;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+	}
+
+	/**
+	 * Check that the fields present match what the message type requires.
+	 * These rules are shared by every wire format.
+	 * 
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT
+	 */
+	private void validate() throws KVException {
+		boolean hasKey = this.key != null;
+		boolean hasValue = this.value != null;
+		boolean hasMessage = this.message != null;
+		boolean valid;
+
+		if (this.msgType == null) {
+			valid = false;
+		} else if (isBatchType(this.msgType)) {
+			valid = !hasKey && !hasValue && !hasMessage
+					&& !this.entries.isEmpty()
+					&& this.entries.size() <= MAX_BATCH_ENTRIES;
+			String entryType = entryType(this.msgType);
+			for (int i = 0; valid && i < this.entries.size(); i++) {
+				KVMessage entry = this.entries.get(i);
+				valid = entryType.equals(entry.msgType);
+				if (valid) {
+					entry.validate();
 				}
-			} else {
-				throw new KVException(new KVMessage(KVConstants.RESP,
-						KVConstants.ERROR_INVALID_FORMAT));
 			}
-		} catch (ParserConfigurationException e) {
-			// TODO Auto-generated catch block
-			KVMessage exceptMessage = new KVMessage(
-					KVConstants.RESP,
-					KVConstants.ERROR_PARSER);
-			throw new KVException(exceptMessage);
-		} catch (SAXException e) {
-			// TODO Auto-generated catch block
-			KVMessage exceptMessage = new KVMessage(KVConstants.RESP,
-					KVConstants.ERROR_PARSER);
-			throw new KVException(exceptMessage);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			//e.printStackTrace();
-			KVMessage exceptMessage = new KVMessage(KVConstants.RESP,
-					KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
-			throw new KVException(exceptMessage);
+		} else if (!this.entries.isEmpty()) {
+			valid = false;
+		} else if (this.msgType.equals(KVConstants.PUT_REQ)) {
+			valid = hasKey && hasValue && !hasMessage;
+		} else if (this.msgType.equals(KVConstants.GET_REQ)) {
+			valid = hasKey && !hasValue && !hasMessage;
+		} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
+			valid = hasKey && !hasValue && !hasMessage;
+		} else if (this.msgType.equals(KVConstants.STATS_REQ)) {
+			valid = !hasKey && !hasValue && !hasMessage;
+		} else if (this.msgType.equals(KVConstants.RESP)) {
+			valid = (hasKey && hasValue && !hasMessage)
+					|| (!hasKey && !hasValue && hasMessage);
+		} else {
+			valid = false;
 		}
 
+		if (!valid) {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
 	}
 
 	/**
@@ -169,6 +320,39 @@ public class KVMessage implements Serializable {
 		this.key = kvm.key;
 		this.value = kvm.value;
 		this.message = kvm.message;
+		this.entries = new ArrayList<KVMessage>(kvm.entries);
+		this.timeout = kvm.timeout;
+		this.enqueueTime = kvm.enqueueTime;
+	}
+
+	/**
+	 * Check whether a message type is one of the batch types, whose messages
+	 * carry a list of per-key entries instead of a key, value or message.
+	 * 
+	 * @param msgType
+	 *            the type to check
+	 * @return true for MULTI_GET_REQ, MULTI_PUT_REQ, MULTI_DEL_REQ and
+	 *         MULTI_RESP
+	 */
+	public static boolean isBatchType(String msgType) {
+		return entryType(msgType) != null;
+	}
+
+	/**
+	 * The type of the entries of a batch message type, or null if msgType is
+	 * not a batch type.
+	 */
+	private static String entryType(String msgType) {
+		if (MULTI_GET_REQ.equals(msgType)) {
+			return GET_REQ;
+		} else if (MULTI_PUT_REQ.equals(msgType)) {
+			return PUT_REQ;
+		} else if (MULTI_DEL_REQ.equals(msgType)) {
+			return DEL_REQ;
+		} else if (MULTI_RESP.equals(msgType)) {
+			return RESP;
+		}
+		return null;
 	}
 
 	/**
@@ -182,83 +366,119 @@ public class KVMessage implements Serializable {
 	public String toXML() throws KVException {
 		// implement me
 		try {
-			if (this.msgType == null) {
-				throw new KVException(new KVMessage(KVConstants.RESP,
-						KVConstants.ERROR_INVALID_FORMAT));
-			}
-
-			boolean shouldKey = false;
-			boolean shouldValue = false;
-			boolean shouldMessage = false;
+			StringWriter sw = new StringWriter();
+			writeXML(sw);
+			return sw.toString();
+		} catch (IOException e) {
+			// a StringWriter does not throw, so a field held a character
+			// that XML does not allow
+			throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_FORMAT));
+		}
+	}
 
-			if (this.msgType.equals(KVConstants.PUT_REQ)) {
-				shouldKey = true;
-				shouldValue = true;
-			} else if (this.msgType.equals(KVConstants.GET_REQ)) {
-				shouldKey = true;
-			} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
-				shouldKey = true;
-			} else if (this.msgType.equals(KVConstants.RESP)) {
-				if(this.message != null)
-					shouldMessage = true;
-				else{
-					shouldValue = true;
-					shouldKey = true;
-				}
-			} else {
-				throw new KVException(new KVMessage(KVConstants.RESP,
-						KVConstants.ERROR_INVALID_FORMAT));
+	/**
+	 * Check this message and write its XML representation to a Writer. Nothing
+	 * is written if the message is not in a valid state.
+	 * 
+	 * @param w
+	 *            Writer to send the XML to
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT
+	 * @throws IOException
+	 *             if the Writer fails
+	 */
+	private void writeXML(Writer w) throws KVException, IOException {
+		if (isBatchType(this.msgType)) {
+			validate();
+			XMLWriter xml = new XMLWriter(w);
+			xml.startDocument(false);
+			xml.startElement("KVMessage");
+			xml.attribute("type", this.msgType);
+			if (this.timeout > 0) {
+				xml.textElement("Timeout", Integer.toString(this.timeout));
 			}
-
-			if (shouldKey) {
-				if (this.key == null || this.key.length() == 0) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
+			for (KVMessage entry : this.entries) {
+				xml.startElement("KVPair");
+				if (entry.key != null) {
+					xml.textElement("Key", entry.key);
 				}
-			}
-			if (shouldValue) {
-				if (this.value == null || this.value.length() == 0) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
+				if (entry.value != null) {
+					xml.textElement("Value", entry.value);
 				}
-			}
-			if (shouldMessage) {
-				if (this.message == null || this.message.length() == 0) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
+				if (entry.message != null) {
+					xml.textElement("Message", entry.message);
 				}
+				xml.endElement();
 			}
+			xml.endDocument();
+			return;
+		}
+		if (this.msgType == null) {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
 
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
-					.newDocumentBuilder();
-			Document doc = builder.newDocument();
-			Element KVMessage = doc.createElement("KVMessage");
-			doc.appendChild(KVMessage);
-			
-			KVMessage.setAttribute("type", this.msgType);
-			
-			if(shouldKey){
-				Element Key = doc.createElement("Key");
-				KVMessage.appendChild(Key);
-				Key.appendChild(doc.createTextNode(this.key));
+		boolean shouldKey = false;
+		boolean shouldValue = false;
+		boolean shouldMessage = false;
+
+		if (this.msgType.equals(KVConstants.PUT_REQ)) {
+			shouldKey = true;
+			shouldValue = true;
+		} else if (this.msgType.equals(KVConstants.GET_REQ)) {
+			shouldKey = true;
+		} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
+			shouldKey = true;
+		} else if (this.msgType.equals(KVConstants.STATS_REQ)) {
+			// no fields
+		} else if (this.msgType.equals(KVConstants.RESP)) {
+			if(this.message != null)
+				shouldMessage = true;
+			else{
+				shouldValue = true;
+				shouldKey = true;
 			}
-			if(shouldValue){
-				Element Value = doc.createElement("Value");
-				KVMessage.appendChild(Value);
-				Value.appendChild(doc.createTextNode(this.value));
+		} else {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
+
+		if (shouldKey) {
+			if (this.key == null || this.key.length() == 0) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
 			}
-			if(shouldMessage){
-				Element Message = doc.createElement("Message");
-				KVMessage.appendChild(Message);
-				Message.appendChild(doc.createTextNode(this.message));
+		}
+		if (shouldValue) {
+			if (this.value == null || this.value.length() == 0) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		}
+		if (shouldMessage) {
+			if (this.message == null || this.message.length() == 0) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
 			}
-			
-			return printDoc(doc);
-		} catch (ParserConfigurationException e) {
-			// TODO Auto-generated catch block
-			throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_PARSER));
 		}
 
+		XMLWriter xml = new XMLWriter(w);
+		xml.startDocument(false);
+		xml.startElement("KVMessage");
+		xml.attribute("type", this.msgType);
+		if (shouldKey) {
+			xml.textElement("Key", this.key);
+		}
+		if (shouldValue) {
+			xml.textElement("Value", this.value);
+		}
+		if (shouldMessage) {
+			xml.textElement("Message", this.message);
+		}
+		if (this.timeout > 0) {
+			xml.textElement("Timeout", Integer.toString(this.timeout));
+		}
+		xml.endDocument();
 	}
 
 	/**
@@ -277,23 +497,266 @@ public class KVMessage implements Serializable {
 	public void sendMessage(Socket sock) throws KVException {
 		// implement me
 		try {
-			
-			String outputMessage = this.toXML();
-			OutputStream outstream = sock.getOutputStream();
-			byte[] sendData = outputMessage.getBytes("UTF-8");
-			outstream.write(sendData);
-			outstream.flush();
+			Writer w = new BufferedWriter(new OutputStreamWriter(
+					sock.getOutputStream(), UTF8));
+			writeXML(w);
 			sock.shutdownOutput();
-			
-			System.out.println(outputMessage);
-			
-			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_COULD_NOT_SEND_DATA));
 		}
 	}
 
+	/**
+	 * Read one binary-framed KVMessage from an InputStream. A frame is laid
+	 * out as the FRAME_MAGIC byte, a message type code byte, and then the key,
+	 * value and message fields, each as a 4-byte big-endian byte length (-1
+	 * if the field is absent) followed by that many bytes of UTF-8. A batch
+	 * message then has a 4-byte entry count followed by the key, value and
+	 * message fields of each entry. If the FRAME_TIMEOUT_FLAG bit of the type
+	 * code is set, a 4-byte timeout follows the type code. The stream should
+	 * be buffered since fields are read piecewise.
+	 * 
+	 * @param in
+	 *            InputStream to receive the frame through
+	 * @return the KVMessage read, or null if the stream ended cleanly before
+	 *         the start of a frame
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT, ERROR_SOCKET_TIMEOUT or
+	 *             ERROR_COULD_NOT_RECEIVE_DATA
+	 */
+	public static KVMessage receiveFrame(InputStream in) throws KVException {
+		try {
+			int magic = in.read();
+			if (magic == -1) {
+				return null;
+			}
+			if (magic != FRAME_MAGIC) {
+				throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+			}
+			DataInputStream dis = new DataInputStream(in);
+			int typeCode = dis.readUnsignedByte();
+			boolean hasTimeout = (typeCode & FRAME_TIMEOUT_FLAG) != 0;
+			typeCode &= ~FRAME_TIMEOUT_FLAG;
+			if (typeCode < 1 || typeCode > FRAME_TYPES.length) {
+				throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+			}
+			KVMessage kvm = new KVMessage(FRAME_TYPES[typeCode - 1]);
+			if (hasTimeout) {
+				kvm.timeout = dis.readInt();
+				if (kvm.timeout <= 0) {
+					throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+				}
+			}
+			kvm.key = readField(dis);
+			kvm.value = readField(dis);
+			kvm.message = readField(dis);
+			String entryType = entryType(kvm.msgType);
+			if (entryType != null) {
+				int count = dis.readInt();
+				if (count < 0 || count > MAX_BATCH_ENTRIES) {
+					throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+				}
+				for (int i = 0; i < count; i++) {
+					KVMessage entry = new KVMessage(entryType);
+					entry.key = readField(dis);
+					entry.value = readField(dis);
+					entry.message = readField(dis);
+					kvm.entries.add(entry);
+				}
+			}
+			kvm.validate();
+			return kvm;
+		} catch (SocketTimeoutException e) {
+			throw new KVException(new KVMessage(RESP, ERROR_SOCKET_TIMEOUT));
+		} catch (IOException e) {
+			throw new KVException(new KVMessage(RESP,
+					ERROR_COULD_NOT_RECEIVE_DATA));
+		}
+	}
+
+	/**
+	 * Send this KVMessage as a single binary frame (see receiveFrame for the
+	 * layout) and flush the stream. Unlike sendMessage this does not shut down
+	 * the output, so the stream can carry further frames.
+	 * 
+	 * @param out
+	 *            OutputStream to send the frame through
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT or ERROR_COULD_NOT_SEND_DATA
+	 */
+	public void sendFrame(OutputStream out) throws KVException {
+		writeFrame(out);
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA));
+		}
+	}
+
+	/**
+	 * Write this KVMessage as a single binary frame without flushing, so that
+	 * several frames written back to back can go out together.
+	 * 
+	 * @param out
+	 *            OutputStream to write the frame to
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT or ERROR_COULD_NOT_SEND_DATA
+	 */
+	public void writeFrame(OutputStream out) throws KVException {
+		validate();
+		int typeCode = 0;
+		for (int i = 0; i < FRAME_TYPES.length; i++) {
+			if (FRAME_TYPES[i].equals(this.msgType)) {
+				typeCode = i + 1;
+			}
+		}
+		if (typeCode == 0) {
+			throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+		}
+
+		boolean batch = isBatchType(this.msgType);
+		byte[][] fields = new byte[3 * (1 + this.entries.size())][];
+		fields[0] = toBytes(this.key);
+		fields[1] = toBytes(this.value);
+		fields[2] = toBytes(this.message);
+		for (int i = 0; i < this.entries.size(); i++) {
+			KVMessage entry = this.entries.get(i);
+			fields[3 * i + 3] = toBytes(entry.key);
+			fields[3 * i + 4] = toBytes(entry.value);
+			fields[3 * i + 5] = toBytes(entry.message);
+		}
+		int size = batch ? 2 + 4 : 2;
+		if (this.timeout > 0) {
+			typeCode |= FRAME_TIMEOUT_FLAG;
+			size += 4;
+		}
+		for (byte[] field : fields) {
+			size += 4 + fieldLength(field);
+		}
+
+		ByteBuffer frame = ByteBuffer.allocate(size);
+		frame.put((byte) FRAME_MAGIC);
+		frame.put((byte) typeCode);
+		if (this.timeout > 0) {
+			frame.putInt(this.timeout);
+		}
+		for (int i = 0; i < fields.length; i++) {
+			if (i == 3) {
+				frame.putInt(this.entries.size());
+			}
+			putField(frame, fields[i]);
+		}
+
+		try {
+			out.write(frame.array());
+		} catch (IOException e) {
+			throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA));
+		}
+	}
+
+	/**
+	 * Work out the length of the binary frame at the position of a buffer
+	 * without consuming anything, so that a non-blocking reader can wait until
+	 * the whole frame has arrived before parsing it.
+	 * 
+	 * @param buf
+	 *            buffer holding received bytes between position and limit
+	 * @return the length in bytes of the frame, or -1 if the buffer does not
+	 *         yet hold all of it
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT if the bytes received so far cannot
+	 *             be the start of a valid frame
+	 */
+	public static long frameLength(ByteBuffer buf) throws KVException {
+		int start = buf.position();
+		if (buf.limit() - start < 2) {
+			return -1;
+		}
+		int typeCode = buf.get(start + 1) & 0xFF;
+		int header = 2;
+		if ((typeCode & FRAME_TIMEOUT_FLAG) != 0) {
+			typeCode &= ~FRAME_TIMEOUT_FLAG;
+			header += 4;
+		}
+		if ((buf.get(start) & 0xFF) != FRAME_MAGIC || typeCode < 1
+				|| typeCode > FRAME_TYPES.length) {
+			throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+		}
+		long offset = skipFields(buf, start + header, 3);
+		if (offset >= 0 && isBatchType(FRAME_TYPES[typeCode - 1])) {
+			if (buf.limit() - offset < 4) {
+				return -1;
+			}
+			int count = buf.getInt((int) offset);
+			if (count < 0 || count > MAX_BATCH_ENTRIES) {
+				throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+			}
+			offset = skipFields(buf, offset + 4, 3 * count);
+		}
+		return (offset < 0) ? -1 : offset - start;
+	}
+
+	/*
+	 * Returns the offset just past a number of length-prefixed fields, or -1
+	 * if they extend past the limit of the buffer.
+	 */
+	private static long skipFields(ByteBuffer buf, long offset, int fields)
+			throws KVException {
+		for (int i = 0; i < fields; i++) {
+			if (buf.limit() - offset < 4) {
+				return -1;
+			}
+			int length = buf.getInt((int) offset);
+			if (length < -1 || length > MAX_FRAME_FIELD_BYTES) {
+				throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+			}
+			offset += 4 + Math.max(length, 0);
+		}
+		return (offset > buf.limit()) ? -1 : offset;
+	}
+
+	/* Set in the type code of a frame that carries a timeout */
+	private static final int FRAME_TIMEOUT_FLAG = 0x80;
+
+	/* Message types that can be carried in a frame, indexed by type code - 1 */
+	private static final String[] FRAME_TYPES = { GET_REQ, PUT_REQ, DEL_REQ,
+			RESP, MULTI_GET_REQ, MULTI_PUT_REQ, MULTI_DEL_REQ, MULTI_RESP,
+			STATS_REQ };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static byte[] toBytes(String field) {
+		return (field == null) ? null : field.getBytes(UTF8);
+	}
+
+	private static int fieldLength(byte[] bytes) {
+		return (bytes == null) ? 0 : bytes.length;
+	}
+
+	private static void putField(ByteBuffer frame, byte[] bytes) {
+		if (bytes == null) {
+			frame.putInt(-1);
+		} else {
+			frame.putInt(bytes.length);
+			frame.put(bytes);
+		}
+	}
+
+	private static String readField(DataInputStream dis) throws IOException,
+			KVException {
+		int length = dis.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > MAX_FRAME_FIELD_BYTES) {
+			throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+		}
+		byte[] bytes = new byte[length];
+		dis.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
 	public String getKey() {
 		return key;
 	}
@@ -322,6 +785,49 @@ public class KVMessage implements Serializable {
 		return msgType;
 	}
 
+	public List<KVMessage> getEntries() {
+		return entries;
+	}
+
+	public void addEntry(KVMessage entry) {
+		this.entries.add(entry);
+	}
+
+	/**
+	 * @return how long, in milliseconds, the sender will wait for a response
+	 *         to this request, or 0 if it did not say
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set how long the sender will wait for a response to this request, so
+	 * that a server can skip it once nobody is waiting any more.
+	 * 
+	 * @param timeout
+	 *            milliseconds counted from receipt by the server, or 0 to
+	 *            leave it unspecified
+	 */
+	public void setTimeout(int timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
+		}
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the time, in milliseconds since the epoch, at which a server
+	 *         queued this request, or 0 if it has not been queued
+	 */
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+
+	public void setEnqueueTime(long enqueueTime) {
+		this.enqueueTime = enqueueTime;
+	}
+
 	@Override
 	public String toString() {
 		try {
@@ -348,25 +854,4 @@ public class KVMessage implements Serializable {
 		} // ignore close
 	}
 
-	/*
-	 * http://stackoverflow.com/questions/2567416/document-to-string/2567428#2567428
-	 */
-	public static String printDoc(Document doc) {
-		try {
-			StringWriter sw = new StringWriter();
-			TransformerFactory tf = TransformerFactory.newInstance();
-			Transformer transformer = tf.newTransformer();
-			transformer
-					.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-			transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-
-			transformer.transform(new DOMSource(doc), new StreamResult(sw));
-			return sw.toString();
-		} catch (Exception ex) {
-			throw new RuntimeException("Error converting to String", ex);
-		}
-	}
-
-}
+}
\ No newline at end of file
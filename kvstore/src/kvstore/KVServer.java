@@ -2,24 +2,39 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class services all storage logic for an individual key-value server.
  * All KVServer request on keys from different sets must be parallel while
  * requests on keys from the same set should be serial. A write-through
  * policy should be followed when a put request is made.
+ *
+ * A key always maps to the same cache set, so the lock for that set is all
+ * that is needed to keep the cache and store consistent for the key; the
+ * store itself is a ConcurrentHashMap and needs no lock of its own. Cache
+ * misses and writes on keys in different sets therefore reach the store in
+ * parallel.
+ *
+ * Keys found not to exist are remembered in a NegativeCache, so that repeated
+ * gets of an absent key are answered without the store. Every write removes
+ * its key from it under the lock of the key's set, so it is never stale.
  */
-public class KVServer implements KeyValueInterface {
+public class KVServer implements BatchKeyValueInterface {
 
     private KVStore dataStore;
-    private KVCache dataCache;
-    
-    private Lock storeLock;
+    private KVCacheInterface dataCache;
+    private volatile NegativeCache absentKeys =
+            new NegativeCache(NegativeCache.DEFAULT_CAPACITY, NegativeCache.DEFAULT_TTL_MILLISECONDS);
 
-    private static final int MAX_KEY_SIZE = 256;
-    private static final int MAX_VAL_SIZE = 256 * 1024;
+    static final int MAX_KEY_SIZE = 256;
+    static final int MAX_VAL_SIZE = 256 * 1024;
 
     /**
      * Constructs a KVServer backed by a KVCache and KVStore.
@@ -29,42 +44,84 @@ public class KVServer implements KeyValueInterface {
      */
 
     public KVServer(int numSets, int maxElemsPerSet) {
-        this.dataCache = new KVCache(numSets, maxElemsPerSet);
+        this(new KVCache(numSets, maxElemsPerSet));
+    }
+
+    /**
+     * Constructs a KVServer backed by a KVCache with the given eviction
+     * policy, optionally behind a TinyLFU admission filter, and a KVStore.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param type eviction policy of the data cache
+     * @param admissionFilter whether a key must be looked up more often than
+     *        the entry it would evict before it is cached
+     * @param maxCacheBytes most bytes the data cache may take up, as
+     *        estimated by KVCache.weigh, or 0 to limit it by count alone
+     */
+    public KVServer(int numSets, int maxElemsPerSet, EvictionPolicy.Type type,
+            boolean admissionFilter, long maxCacheBytes) {
+        this(newCache(numSets, maxElemsPerSet, type, admissionFilter, maxCacheBytes));
+    }
+
+    /**
+     * Constructs a KVServer backed by the given cache, such as an
+     * OffHeapKVCache, and a KVStore.
+     *
+     * @param dataCache cache to keep in front of the store, not to be shared
+     */
+    public KVServer(KVCacheInterface dataCache) {
+        this.dataCache = dataCache;
         this.dataStore = new KVStore();
-        storeLock = new ReentrantLock();
+    }
+
+    private static KVCache newCache(int numSets, int maxElemsPerSet,
+            EvictionPolicy.Type type, boolean admissionFilter, long maxCacheBytes) {
+        KVCache cache = new KVCache(numSets, maxElemsPerSet, 0, type, maxCacheBytes);
+        if (admissionFilter) {
+            cache.setAdmissionFilter(new FrequencySketch(numSets * maxElemsPerSet));
+        }
+        return cache;
     }
 
     /**
-     * Check the length of key
+     * Check the length of key, and that it holds only characters XML allows
      * 
      * @param key String key
      * @return true if key.length is valid; otherwise, return false
      * @throws KVException 
      */
-    private void checkKey(String key) throws KVException{
+    static void checkKey(String key) throws KVException{
     	if(key == null || key.length() == 0){
     		KVMessage excpMsg = new KVMessage(RESP, ERROR_INVALID_KEY);
     		throw new KVException(excpMsg);
     	}else if( key.length() > MAX_KEY_SIZE){
     		KVMessage excpMsg = new KVMessage(RESP, ERROR_OVERSIZED_KEY);
     		throw new KVException(excpMsg);
+    	}else if(!XMLWriter.isValidText(key)){
+    		KVMessage excpMsg = new KVMessage(RESP, ERROR_INVALID_FORMAT);
+    		throw new KVException(excpMsg);
     	}
     }
     
     /**
-     * Check the length of value
+     * Check the length of value, and that it holds only characters XML
+     * allows, so that it can be sent back over either protocol
      * 
      * @param value String value
      * @return true if value.length is valid; otherwise, return false
      * @throws KVException 
      */
-    private void checkValue(String value) throws KVException{
+    static void checkValue(String value) throws KVException{
     	if(value == null || value.length() == 0){
     		KVMessage excpMsg = new KVMessage(RESP, ERROR_INVALID_VALUE);
     		throw new KVException(excpMsg);
     	}else if( value.length() > MAX_VAL_SIZE){
     		KVMessage excpMsg = new KVMessage(RESP, ERROR_OVERSIZED_VALUE);
     		throw new KVException(excpMsg);
+    	}else if(!XMLWriter.isValidText(value)){
+    		KVMessage excpMsg = new KVMessage(RESP, ERROR_INVALID_FORMAT);
+    		throw new KVException(excpMsg);
     	}
     }
     
@@ -83,13 +140,7 @@ public class KVServer implements KeyValueInterface {
     	
     	dataCache.getLock(key).lock();
     	try{
-    		dataCache.put(key, value);
-    		storeLock.lock();
-    		try{
-    			dataStore.put(key, value);
-    		}finally{
-    			storeLock.unlock();
-    		}
+    		putInSet(key, value);
     	}finally{
     		dataCache.getLock(key).unlock();
     	}
@@ -97,7 +148,9 @@ public class KVServer implements KeyValueInterface {
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first under the shared read lock of the set, so hits in the
+     * same set do not wait for each other. On a miss the exclusive lock is
+     * taken to update the cache from the store.
      *
      * @param  key String key
      * @return String value associated with key
@@ -107,19 +160,28 @@ public class KVServer implements KeyValueInterface {
     public String get(String key) throws KVException {
         // implement me
     	checkKey(key);
-    	dataCache.getLock(key).lock();
-    	
+    	Lock readLock = dataCache.getReadLock(key);
+    	readLock.lock();
     	try{
     		String value = dataCache.get(key);
+    		if(value != null){
+    			return value;
+    		}
+    		NegativeCache absent = absentKeys;
+    		if(absent != null && absent.contains(key)){
+    			throw noSuchKey();
+    		}
+    	}finally{
+    		readLock.unlock();
+    	}
+    	dataCache.getLock(key).lock();
+    	try{
+    		// the lookup above was already counted by any admission filter
+    		String value = findInStore(key);
     		if(value == null){
-    			storeLock.lock();
-    			try{
-    				value = dataStore.get(key);
-    			}finally{
-    				storeLock.unlock();
-    			}
-    			dataStore.put(key, value);
+    			throw noSuchKey();
     		}
+    		dataCache.put(key, value);
     		return value;
     	}finally{
     		dataCache.getLock(key).unlock();
@@ -139,20 +201,178 @@ public class KVServer implements KeyValueInterface {
     	dataCache.getLock(key).lock();
     	
     	try{
-    		storeLock.lock();
-    		try{
-    			// first call get: throw exception if key doesn't exist
-    			dataStore.get(key);
-    			dataCache.del(key);
-    			dataStore.del(key);
-    		}finally{
-    			storeLock.unlock();
-    		}
+    		delFromSet(key);
     	}finally{
     		dataCache.getLock(key).unlock();
     	}
     }
 
+    /**
+     * Performs a batch of put requests. Every key and value is checked before
+     * any of them is written, and the sets of all the keys are held for the
+     * whole batch.
+     *
+     * @param  pairs keys and the values to put for them
+     * @throws KVException if any key or value is invalid or too long
+     */
+    @Override
+    public void putAll(Map<String, String> pairs) throws KVException {
+    	for(Map.Entry<String, String> pair : pairs.entrySet()){
+    		checkKey(pair.getKey());
+    		checkValue(pair.getValue());
+    	}
+    	List<Lock> locks = dataCache.getLocks(pairs.keySet());
+    	lockAll(locks);
+    	try{
+    		for(Map.Entry<String, String> pair : pairs.entrySet()){
+    			putInSet(pair.getKey(), pair.getValue());
+    		}
+    	}finally{
+    		unlockAll(locks);
+    	}
+    }
+
+    /**
+     * Performs a batch of get requests, holding the sets of all the keys for
+     * the whole batch so that the values returned are a consistent snapshot.
+     *
+     * @param  keys keys to look up
+     * @return values of the keys that exist, in the order the keys were given;
+     *         keys that do not exist are left out
+     * @throws KVException if any key is invalid or too long
+     */
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) throws KVException {
+    	for(String key : keys){
+    		checkKey(key);
+    	}
+    	List<Lock> locks = dataCache.getLocks(keys);
+    	lockAll(locks);
+    	try{
+    		Map<String, String> values = new LinkedHashMap<String, String>();
+    		for(String key : keys){
+    			String value = findInSet(key);
+    			if(value != null){
+    				values.put(key, value);
+    			}
+    		}
+    		return values;
+    	}finally{
+    		unlockAll(locks);
+    	}
+    }
+
+    /**
+     * Performs a batch of del requests, holding the sets of all the keys for
+     * the whole batch. Keys that do not exist are skipped.
+     *
+     * @param  keys keys to delete
+     * @return the keys that existed and were deleted
+     * @throws KVException if any key is invalid or too long
+     */
+    @Override
+    public Set<String> delAll(Collection<String> keys) throws KVException {
+    	for(String key : keys){
+    		checkKey(key);
+    	}
+    	List<Lock> locks = dataCache.getLocks(keys);
+    	lockAll(locks);
+    	try{
+    		Set<String> deleted = new HashSet<String>();
+    		for(String key : keys){
+    			if(dataStore.hasKey(key)){
+    				delFromSet(key);
+    				deleted.add(key);
+    			}
+    		}
+    		return deleted;
+    	}finally{
+    		unlockAll(locks);
+    	}
+    }
+
+    /**
+     * Writes through to cache and store. The caller must hold the lock for
+     * the set of the key.
+     */
+    private void putInSet(String key, String value) {
+    	NegativeCache absent = absentKeys;
+    	if(absent != null){
+    		absent.remove(key);
+    	}
+    	dataCache.put(key, value);
+    	dataStore.put(key, value);
+    }
+
+    /**
+     * Reads from the cache, filling it from the store on a miss. The caller
+     * must hold the lock for the set of the key.
+     *
+     * @return the value, or null if key does not exist
+     */
+    private String findInSet(String key) {
+    	String value = dataCache.get(key);
+    	if(value == null){
+    		value = findInStore(key);
+    		if(value != null){
+    			dataCache.put(key, value);
+    		}
+    	}
+    	return value;
+    }
+
+    /**
+     * Reads from the store, remembering a key that does not exist. The
+     * caller must hold the lock for the set of the key.
+     *
+     * @return the value, or null if key does not exist
+     */
+    private String findInStore(String key) {
+    	NegativeCache absent = absentKeys;
+    	if(absent != null && absent.contains(key)){
+    		return null;
+    	}
+    	String value = dataStore.find(key);
+    	if(value == null && absent != null){
+    		absent.add(key);
+    	}
+    	return value;
+    }
+
+    /* Cheap to throw: an absent key is an expected outcome, not a fault */
+    private static KVException noSuchKey() {
+    	return new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY), false);
+    }
+
+    /**
+     * Deletes from cache and store. The caller must hold the lock for the set
+     * of the key, which keeps the check and the removal atomic.
+     */
+    private void delFromSet(String key) throws KVException {
+    	if(!dataStore.hasKey(key)){
+    		throw noSuchKey();
+    	}
+    	dataCache.del(key);
+    	dataStore.del(key);
+    	NegativeCache absent = absentKeys;
+    	if(absent != null){
+    		absent.add(key);
+    	}
+    }
+
+    /* Acquires locks in list order, as given by KVCache.getLocks */
+    private static void lockAll(List<Lock> locks) {
+    	for(Lock lock : locks){
+    		lock.lock();
+    	}
+    }
+
+    private static void unlockAll(List<Lock> locks) {
+    	for(int i = locks.size() - 1; i >= 0; i--){
+    		locks.get(i).unlock();
+    	}
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
@@ -163,18 +383,32 @@ public class KVServer implements KeyValueInterface {
      * @throws KVException 
      */
     public boolean hasKey(String key) throws KVException {
-        // implement me
-    	
-        try{
-        	dataStore.get(key);
-        	return true;
-        }catch(KVException e){
-        	if(KVConstants.ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage())){
-        		return false;
-        	}else{
-        		throw e;
-        	}
-        }
+        return dataStore.hasKey(key);
+    }
+
+    /**
+     * Sets the cache of keys known not to exist. It must not be shared with
+     * another server.
+     *
+     * @param absentKeys cache to use, or null to always ask the store
+     */
+    public void setNegativeCache(NegativeCache absentKeys) {
+        this.absentKeys = absentKeys;
+    }
+
+    /**
+     * @return estimated bytes taken by the entries of the data cache
+     */
+    public long getCacheBytesUsed() {
+        return dataCache.getBytesUsed();
+    }
+
+    /**
+     * @return counters for each set of the data cache
+     */
+    @Override
+    public CacheStats getCacheStats() {
+        return dataCache.getStats();
     }
 
     /** This method is purely for convenience and will not be tested. */
@@ -4,14 +4,16 @@ import static kvstore.KVConstants.*;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -63,6 +65,24 @@ public class KVStore implements KeyValueInterface {
         return retVal;
     }
 
+    /**
+     * Retrieve the value corresponding to the provided key, if there is one.
+     * @param  key String key
+     * @return the value, or null if key does not exist in store
+     */
+    public String find(String key) {
+        return this.store.get(key);
+    }
+
+    /**
+     * Check whether the store holds a value for the provided key.
+     * @param  key String key
+     * @return true if the key exists
+     */
+    public boolean hasKey(String key) {
+        return this.store.containsKey(key);
+    }
+
     /**
      * Delete the value corresponding to the provided key.
      *
@@ -87,33 +107,28 @@ public class KVStore implements KeyValueInterface {
      */
     public String toXML() throws Exception {
         // implement me
-		try {
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-
-			Document doc = builder.newDocument();
-			doc.setXmlStandalone(true);
-			Element KVStoreElement = doc.createElement("KVStore");
-			doc.appendChild(KVStoreElement);
-			Enumeration<String> keysEnumerator = this.store.keys();
-			for (int i = 0; i < store.size(); i++){
-				Element KVPairElement = doc.createElement("KVPair");
-				KVStoreElement.appendChild(KVPairElement);
-
-				String key = keysEnumerator.nextElement();
-				Element keyElement = doc.createElement("Key");
-				keyElement.appendChild(doc.createTextNode(key));
-				KVPairElement.appendChild(keyElement);
-
-				String value = store.get(key);
-				Element valueElement = doc.createElement("Value");
-				valueElement.appendChild(doc.createTextNode(value));
-				KVPairElement.appendChild(valueElement);
+        StringWriter sw = new StringWriter();
+        writeXML(sw);
+        return sw.toString();
+    }
 
-			}
-			return KVMessage.printDoc(doc);
-		} catch (ParserConfigurationException e) {
-			throw new Exception(ERROR_PARSER);
-		}
+    /**
+     * Stream the XML serialization of the store to a Writer.
+     *
+     * @param w Writer to send the XML to
+     * @throws IOException if the Writer fails
+     */
+    private void writeXML(Writer w) throws IOException {
+        XMLWriter xml = new XMLWriter(w);
+        xml.startDocument(true);
+        xml.startElement("KVStore");
+        for (Map.Entry<String, String> pair : store.entrySet()) {
+            xml.startElement("KVPair");
+            xml.textElement("Key", pair.getKey());
+            xml.textElement("Value", pair.getValue());
+            xml.endElement();
+        }
+        xml.endDocument();
     }
 
     @Override
@@ -136,9 +151,13 @@ public class KVStore implements KeyValueInterface {
     public void dumpToFile(String fileName) throws Exception {
         // implement me
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(fileName));
-			writer.write(toXML());
-	    	writer.close();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(fileName), "UTF-8"));
+			try {
+				writeXML(writer);
+			} finally {
+				writer.close();
+			}
 		} catch (IOException e) {
 			throw new Exception(ERROR_PARSER);
 		}
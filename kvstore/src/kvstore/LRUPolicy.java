@@ -0,0 +1,58 @@
+package kvstore;
+
+/**
+ * Least recently used replacement. Hits cannot reorder a list under the
+ * shared read lock, so each slot is stamped from a per-set counter instead
+ * and eviction looks for the oldest stamp. Readers racing on the counter can
+ * hand out the same stamp twice, which only makes two entries tie.
+ */
+public class LRUPolicy extends EvictionPolicy {
+
+    private final long[] lastUsed;
+    private final boolean[] held;
+    private final long[] ticks;
+
+    /**
+     * @param numSets the number of sets of the cache
+     * @param maxElemsPerSet the size of each set
+     */
+    public LRUPolicy(int numSets, int maxElemsPerSet) {
+        super(numSets, maxElemsPerSet);
+        lastUsed = new long[numSets * maxElemsPerSet];
+        held = new boolean[numSets * maxElemsPerSet];
+        ticks = new long[numSets];
+    }
+
+    @Override
+    public void accessed(int setId, int slot) {
+        super.accessed(setId, slot);
+        lastUsed[slot] = ++ticks[setId];
+    }
+
+    @Override
+    public void inserted(int setId, int slot, int hash) {
+        referenced[slot] = false;
+        held[slot] = true;
+        lastUsed[slot] = ++ticks[setId];
+    }
+
+    @Override
+    public void removed(int setId, int slot) {
+        held[slot] = false;
+        referenced[slot] = false;
+    }
+
+    @Override
+    public int evict(int setId) {
+        int base = setId * maxElemsPerSet;
+        int victim = SlotQueues.NONE;
+        for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+            if (held[slot] && (victim == SlotQueues.NONE || lastUsed[slot] < lastUsed[victim])) {
+                victim = slot;
+            }
+        }
+        held[victim] = false;
+        return victim;
+    }
+
+}
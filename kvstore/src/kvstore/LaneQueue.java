@@ -0,0 +1,396 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A job queue for ThreadPool with a separate lane per kind of operation, so
+ * that cheap GETs are not stuck behind a burst of large PUTs. Lanes that have
+ * jobs waiting are served in proportion to their weights using smooth
+ * weighted round robin, and each lane has its own capacity. The time jobs
+ * spend waiting is tracked per lane.
+ *
+ * Jobs implementing LaneQueue.Job choose their lane; any other Runnable, such
+ * as a whole connection from ServerClientHandler, goes in the OTHER lane.
+ */
+public class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * The lanes of a LaneQueue.
+     */
+    public enum Lane { GET, PUT, DEL, OTHER }
+
+    /**
+     * A job that knows which lane it belongs in.
+     */
+    public interface Job extends Runnable {
+
+        /**
+         * @return the lane to queue this job in
+         */
+        public Lane getLane();
+    }
+
+    /* Default weights, favouring reads */
+    public static final int DEFAULT_GET_WEIGHT = 4;
+    public static final int DEFAULT_OTHER_WEIGHT = 1;
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final int capacityPerLane;
+    private final int[] weights = new int[LANES.length];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /* The following are guarded by lock */
+    private final List<ArrayDeque<Entry>> lanes = new ArrayList<ArrayDeque<Entry>>();
+    private final int[] credit = new int[LANES.length];
+    private int count = 0;
+    private final long[] dequeued = new long[LANES.length];
+    private final long[] totalWaitNanos = new long[LANES.length];
+    private final long[] maxWaitNanos = new long[LANES.length];
+
+    /**
+     * Constructs a LaneQueue with DEFAULT_GET_WEIGHT for the GET lane and
+     * DEFAULT_OTHER_WEIGHT for the others.
+     *
+     * @param capacityPerLane most jobs waiting in each lane
+     */
+    public LaneQueue(int capacityPerLane) {
+        this(capacityPerLane, new EnumMap<Lane, Integer>(Lane.class));
+    }
+
+    /**
+     * Constructs a LaneQueue with the given weights.
+     *
+     * @param capacityPerLane most jobs waiting in each lane
+     * @param weights relative share of dequeues for each lane while several
+     *        have jobs waiting; lanes left out get the defaults
+     */
+    public LaneQueue(int capacityPerLane, Map<Lane, Integer> weights) {
+        if (capacityPerLane < 1) {
+            throw new IllegalArgumentException("capacityPerLane must be positive");
+        }
+        this.capacityPerLane = capacityPerLane;
+        for (Lane lane : LANES) {
+            Integer weight = weights.get(lane);
+            if (weight == null) {
+                weight = (lane == Lane.GET) ? DEFAULT_GET_WEIGHT : DEFAULT_OTHER_WEIGHT;
+            }
+            if (weight < 1) {
+                throw new IllegalArgumentException("weights must be positive");
+            }
+            this.weights[lane.ordinal()] = weight;
+            lanes.add(new ArrayDeque<Entry>());
+        }
+    }
+
+    /**
+     * @param request KVMessage about to be queued
+     * @return the lane for a request of that type
+     */
+    public static Lane laneOf(KVMessage request) {
+        String type = request.getMsgType();
+        if (GET_REQ.equals(type) || MULTI_GET_REQ.equals(type)) {
+            return Lane.GET;
+        } else if (PUT_REQ.equals(type) || MULTI_PUT_REQ.equals(type)) {
+            return Lane.PUT;
+        } else if (DEL_REQ.equals(type) || MULTI_DEL_REQ.equals(type)) {
+            return Lane.DEL;
+        }
+        return Lane.OTHER;
+    }
+
+    private static Lane laneOf(Runnable job) {
+        return (job instanceof Job) ? ((Job) job).getLane() : Lane.OTHER;
+    }
+
+    @Override
+    public boolean offer(Runnable job) {
+        Lane lane = laneOf(job);
+        lock.lock();
+        try {
+            if (lanes.get(lane.ordinal()).size() >= capacityPerLane) {
+                return false;
+            }
+            enqueue(lane, job);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable job, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Lane lane = laneOf(job);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (lanes.get(lane.ordinal()).size() >= capacityPerLane) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(lane, job);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable job) throws InterruptedException {
+        Lane lane = laneOf(job);
+        lock.lockInterruptibly();
+        try {
+            while (lanes.get(lane.ordinal()).size() >= capacityPerLane) {
+                notFull.await();
+            }
+            enqueue(lane, job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return (count == 0) ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the job at the head of the first non-empty lane, which is not
+     *         necessarily the one the next poll will return
+     */
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    return lane.peekFirst().job;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacityPerLane * LANES.length - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the waiting jobs, lane by lane
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> jobs = new ArrayList<Runnable>(count);
+            for (ArrayDeque<Entry> lane : lanes) {
+                for (Entry entry : lane) {
+                    jobs.add(entry.job);
+                }
+            }
+            return jobs.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane lane to report on
+     * @return number of jobs waiting in the lane
+     */
+    public int getQueueDepth(Lane lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane lane to report on
+     * @return number of jobs taken from the lane so far
+     */
+    public long getDequeuedCount(Lane lane) {
+        lock.lock();
+        try {
+            return dequeued[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane lane to report on
+     * @return mean time, in microseconds, jobs taken from the lane spent
+     *         waiting, or 0 if none have been taken
+     */
+    public long getMeanWaitMicros(Lane lane) {
+        lock.lock();
+        try {
+            int i = lane.ordinal();
+            return (dequeued[i] == 0) ? 0 : totalWaitNanos[i] / dequeued[i] / 1000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane lane to report on
+     * @return longest time, in microseconds, a job taken from the lane spent
+     *         waiting
+     */
+    public long getMaxWaitMicros(Lane lane) {
+        lock.lock();
+        try {
+            return maxWaitNanos[lane.ordinal()] / 1000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Called with the lock held */
+    private void enqueue(Lane lane, Runnable job) {
+        if (job == null) {
+            throw new NullPointerException();
+        }
+        lanes.get(lane.ordinal()).addLast(new Entry(job));
+        count++;
+        notEmpty.signal();
+    }
+
+    /*
+     * Called with the lock held and count > 0. Each non-empty lane earns its
+     * weight in credit, the lane with the most credit is served and pays back
+     * the total earned, which spreads each lane's turns out evenly.
+     */
+    private Runnable dequeue() {
+        int best = -1;
+        int total = 0;
+        for (int i = 0; i < LANES.length; i++) {
+            if (!lanes.get(i).isEmpty()) {
+                credit[i] += weights[i];
+                total += weights[i];
+                if (best < 0 || credit[i] > credit[best]) {
+                    best = i;
+                }
+            }
+        }
+        credit[best] -= total;
+        ArrayDeque<Entry> lane = lanes.get(best);
+        Entry entry = lane.pollFirst();
+        if (lane.isEmpty()) {
+            // an idle lane should not save up turns
+            credit[best] = 0;
+        }
+        count--;
+        long wait = System.nanoTime() - entry.enqueuedNanos;
+        dequeued[best]++;
+        totalWaitNanos[best] += wait;
+        maxWaitNanos[best] = Math.max(maxWaitNanos[best], wait);
+        notFull.signalAll();
+        return entry.job;
+    }
+
+    private static class Entry {
+        final Runnable job;
+        final long enqueuedNanos = System.nanoTime();
+
+        Entry(Runnable job) {
+            this.job = job;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package kvstore;
+
+/**
+ * Interface for handlers of requests that have already been read and parsed
+ * off the network, such as those delivered by a NioSocketServer.
+ */
+public interface MessageHandler {
+
+    /**
+     * Creates a job to service a request and returns immediately after
+     * enqueuing that job. The job passes its response to the responder.
+     *
+     * @param request KVMessage received from a client
+     * @param responder where to send the response to the request
+     */
+    public void handle(KVMessage request, Responder responder);
+
+    /**
+     * Destination for the response to a single request.
+     */
+    public interface Responder {
+
+        /**
+         * Sends the response to a request. Called exactly once per request,
+         * from any thread.
+         *
+         * @param response KVMessage to send back to the client
+         */
+        public void respond(KVMessage response);
+    }
+
+}
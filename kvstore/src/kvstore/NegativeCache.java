@@ -0,0 +1,85 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers keys recently found not to exist, so that clients polling for
+ * absent keys are answered without going to the store. It is a fixed-size
+ * table in which each key has one slot, so a newer key can push out an older
+ * one, and entries are forgotten after a time to live. Any number of threads
+ * may use it at once.
+ *
+ * Keeping it correct is up to the caller: a key must be removed whenever it
+ * is written, under the same lock as the write.
+ */
+public class NegativeCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_TTL_MILLISECONDS = 1000;
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final long ttlMillis;
+
+    /**
+     * @param capacity most keys remembered, rounded up to a power of two
+     * @param ttlMillis how long a key is remembered, in milliseconds
+     */
+    public NegativeCache(int capacity, long ttlMillis) {
+        int size = 1;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        this.table = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param key key to check
+     * @return whether the key is remembered as absent
+     */
+    public boolean contains(String key) {
+        Entry entry = table.get(indexOf(key));
+        return entry != null && entry.key.equals(key)
+                && System.currentTimeMillis() < entry.expiresAt;
+    }
+
+    /**
+     * Remembers a key as absent.
+     *
+     * @param key key that was not found
+     */
+    public void add(String key) {
+        table.set(indexOf(key), new Entry(key, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Forgets a key, if it is remembered.
+     *
+     * @param key key that is about to be written
+     */
+    public void remove(String key) {
+        int index = indexOf(key);
+        Entry entry = table.get(index);
+        if (entry != null && entry.key.equals(key)) {
+            table.compareAndSet(index, entry, null);
+        }
+    }
+
+    private int indexOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static class Entry {
+        final String key;
+        final long expiresAt;
+
+        Entry(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
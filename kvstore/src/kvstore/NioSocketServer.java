@@ -0,0 +1,561 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An alternative to SocketServer that services TCP connections from one or
+ * more event loop threads, each with a selector over non-blocking channels.
+ * Requests are read and framed on the event loop that accepted the
+ * connection, and only complete requests are passed to the
+ * MessageHandler, so a connection holds a worker thread only while one of
+ * its requests is being carried out. Idle or slow clients cost a buffer
+ * rather than a blocked thread.
+ *
+ * Both wire formats are accepted and told apart by the first byte of a
+ * connection. An XML request is read until the client shuts down its
+ * output, answered, and the connection closed. Binary frames are answered
+ * one at a time in arrival order, so pipelined responses come back in
+ * request order, and the connection stays open until the client closes it or
+ * leaves it idle for CONNECTION_IDLE_MILLISECONDS.
+ */
+public class NioSocketServer {
+
+    private String hostname;
+    private int port;
+    private MessageHandler handler;
+    private int eventLoopCount;
+    private final List<EventLoop> eventLoops = new CopyOnWriteArrayList<EventLoop>();
+    private boolean reusePort = false;
+    private volatile boolean stopped = false;
+
+    private static final int TIMEOUT = 100;
+    private static final int IDLE_CHECK_MILLISECONDS = 1000;
+    private static final int INITIAL_BUFFER_BYTES = 1024;
+
+    /* Largest request that will be buffered for a single connection */
+    private static final int MAX_REQUEST_BYTES = 16 * MAX_FRAME_FIELD_BYTES;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * StandardSocketOptions.SO_REUSEPORT only exists from Java 9, so it is
+     * looked up at run time; null where the running JDK lacks it.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    /**
+     * Construct a NioSocketServer listening on port 8080.
+     */
+    public NioSocketServer(String hostname) {
+        this(hostname, 8080);
+    }
+
+    /**
+     * Construct a NioSocketServer with a single event loop listening on the
+     * port passed in.
+     *
+     * @param port port on which to listen for connections, or 0 for an
+     *        automatically allocated port
+     */
+    public NioSocketServer(String hostname, int port) {
+        this(hostname, port, 1);
+    }
+
+    /**
+     * Construct a NioSocketServer with several event loops, each on its own
+     * thread. Where the platform supports SO_REUSEPORT every loop gets its
+     * own listening channel on the port, so the kernel spreads incoming
+     * connections across them and no single accept loop is a bottleneck.
+     * Elsewhere the loops share one listening channel.
+     *
+     * @param port port on which to listen for connections, or 0 for an
+     *        automatically allocated port
+     * @param eventLoops number of event loop threads, for example one per core
+     */
+    public NioSocketServer(String hostname, int port, int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be positive");
+        }
+        this.hostname = hostname;
+        this.port = port;
+        this.eventLoopCount = eventLoops;
+    }
+
+    public String getHostname() {
+        return this.hostname;
+    }
+
+    /**
+     * @return the port passed in, or once connect() has been called with port
+     *         0, the port that was allocated
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * @return whether, after connect(), each event loop has a listening
+     *         channel of its own bound with SO_REUSEPORT
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Add the message handler for this socket server
+     *
+     * @param handler is logic for carrying out a parsed request
+     */
+    public void addHandler(MessageHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Opens a selector for each event loop and binds the non-blocking
+     * listening channels.
+     *
+     * @throws IOException if unable to open or bind the channels
+     */
+    public void connect() throws IOException {
+        SocketOption<Boolean> reuse = (eventLoopCount > 1) ? SO_REUSEPORT : null;
+        ServerSocketChannel first = listen(port, reuse);
+        port = first.socket().getLocalPort();
+        reusePort = reuse != null && first.supportedOptions().contains(reuse);
+        for (int i = 0; i < eventLoopCount; i++) {
+            EventLoop loop = new EventLoop();
+            eventLoops.add(loop);
+            loop.register((i == 0 || !reusePort) ? first : listen(port, reuse));
+        }
+    }
+
+    /**
+     * Runs the event loops, accepting connections, reading requests and
+     * writing responses, until stop() is called. The first loop runs on the
+     * calling thread and the others on threads of their own. Every channel
+     * is closed before returning.
+     *
+     * @throws IOException if a selector itself fails
+     */
+    public void start() throws IOException {
+        List<Thread> threads = new ArrayList<Thread>();
+        try {
+            for (int i = 1; i < eventLoops.size(); i++) {
+                final EventLoop loop = eventLoops.get(i);
+                Thread thread = new Thread("event-loop-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            loop.run();
+                        } catch (IOException e) {
+                            // the loop has failed, bring the server down
+                            NioSocketServer.this.stop();
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+            eventLoops.get(0).run();
+        } finally {
+            stop();
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the server cleanly. The event loops notice within TIMEOUT
+     * milliseconds and close the listening channels and every connection.
+     */
+    public void stop() {
+        stopped = true;
+        for (EventLoop loop : eventLoops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private static ServerSocketChannel listen(int port, SocketOption<Boolean> reuse)
+            throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reuse != null && channel.supportedOptions().contains(reuse)) {
+                channel.setOption(reuse, true);
+            }
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * A selector and the connections registered with it, serviced by a
+     * single thread.
+     */
+    private class EventLoop {
+
+        final Selector selector;
+
+        /* Connections whose response is ready, for this loop to write */
+        final ConcurrentLinkedQueue<Connection> responded =
+                new ConcurrentLinkedQueue<Connection>();
+
+        /* When idle connections were last looked for */
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(ServerSocketChannel listener) throws IOException {
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        void run() throws IOException {
+            try {
+                while (!stopped) {
+                    selector.select(TIMEOUT);
+                    Connection ready;
+                    while ((ready = responded.poll()) != null) {
+                        ready.writeResponse();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                    }
+                    closeIdle();
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // ignore error
+                    }
+                }
+                selector.close();
+            }
+        }
+
+        /*
+         * Accepts whatever connections are waiting. With a shared listening
+         * channel another loop may get there first, in which case accept
+         * returns null.
+         */
+        private void accept(ServerSocketChannel listener) {
+            while (true) {
+                SocketChannel channel = null;
+                try {
+                    channel = listener.accept();
+                    if (channel == null) {
+                        return;
+                    }
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Connection conn = new Connection(this, channel);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    // drop this connection and wait for the next selection
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                            // ignore error
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        /* Closes connections that have had nothing to do for too long */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < IDLE_CHECK_MILLISECONDS) {
+                return;
+            }
+            lastIdleCheck = now;
+            long cutoff = now - CONNECTION_IDLE_MILLISECONDS;
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    Connection conn = (Connection) attachment;
+                    if (conn.isIdleSince(cutoff)) {
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client connection. Everything except respond() runs on
+     * the thread of its event loop.
+     */
+    private class Connection implements MessageHandler.Responder {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        /* Bytes received and not yet consumed, kept ready for writing */
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+
+        /* Response being written, or null */
+        private ByteBuffer out;
+
+        /* Encoded response handed over by a worker thread */
+        private volatile ByteBuffer response;
+
+        private boolean formatKnown = false;
+        private boolean binary = false;
+        private boolean inFlight = false;
+        private boolean endOfInput = false;
+        private boolean closeAfterWrite = false;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads whatever is available and dispatches the next request if one
+         * is complete. Stops reading while the buffer is full of requests
+         * waiting behind one in flight.
+         */
+        void read() {
+            if (!in.hasRemaining() && (inFlight || out != null || !grow())) {
+                setReading(false);
+                return;
+            }
+            try {
+                if (channel.read(in) < 0) {
+                    endOfInput = true;
+                    setReading(false);
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            dispatch();
+        }
+
+        /**
+         * Sends the response to a request. Encoding happens on the calling
+         * worker thread; the event loop does the writing.
+         */
+        @Override
+        public void respond(KVMessage message) {
+            ByteBuffer encoded;
+            try {
+                encoded = encode(message);
+            } catch (KVException e) {
+                try {
+                    encoded = encode(e.getKVMessage());
+                } catch (KVException e2) {
+                    encoded = ByteBuffer.allocate(0);
+                }
+            }
+            response = encoded;
+            loop.responded.add(this);
+            loop.selector.wakeup();
+        }
+
+        void writeResponse() {
+            if (!key.isValid()) {
+                return;
+            }
+            inFlight = false;
+            out = response;
+            response = null;
+            write();
+        }
+
+        /**
+         * Writes as much of the current response as the socket will take,
+         * then moves on to the next request once it has all gone.
+         */
+        void write() {
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (out.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            out = null;
+            lastActive = System.currentTimeMillis();
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            setReading(!endOfInput);
+            dispatch();
+        }
+
+        boolean isIdleSince(long cutoff) {
+            return !inFlight && out == null && lastActive < cutoff;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+        }
+
+        /* Hands the next complete request to the handler, if there is one */
+        private void dispatch() {
+            if (inFlight || out != null || closeAfterWrite) {
+                return;
+            }
+            KVMessage request;
+            in.flip();
+            try {
+                request = nextRequest();
+            } catch (KVException e) {
+                // a bad request leaves the stream unsynchronized, so report
+                // the error and drop the connection
+                closeAfterWrite = true;
+                inFlight = true;
+                setReading(false);
+                respond(e.getKVMessage());
+                return;
+            } finally {
+                in.compact();
+            }
+            if (request != null) {
+                inFlight = true;
+                handler.handle(request, this);
+            } else if (endOfInput) {
+                close();
+            }
+        }
+
+        /*
+         * Takes one complete request off the front of the buffer, which is
+         * ready for reading, or returns null if none has fully arrived yet.
+         */
+        private KVMessage nextRequest() throws KVException {
+            if (!in.hasRemaining()) {
+                return null;
+            }
+            if (!formatKnown) {
+                binary = (in.get(in.position()) & 0xFF) == FRAME_MAGIC;
+                formatKnown = true;
+            }
+            if (!binary) {
+                if (!endOfInput) {
+                    if (in.remaining() >= MAX_REQUEST_BYTES) {
+                        throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+                    }
+                    return null;
+                }
+                // the client signals the end of an XML request with EOF
+                closeAfterWrite = true;
+                KVMessage request = new KVMessage(new ByteArrayInputStream(
+                        in.array(), in.position(), in.remaining()));
+                in.position(in.limit());
+                return request;
+            }
+            long length = KVMessage.frameLength(in);
+            if (length < 0) {
+                if (in.remaining() >= MAX_REQUEST_BYTES) {
+                    throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+                }
+                return null;
+            }
+            KVMessage request = KVMessage.receiveFrame(new ByteArrayInputStream(
+                    in.array(), in.position(), (int) length));
+            in.position(in.position() + (int) length);
+            return request;
+        }
+
+        private ByteBuffer encode(KVMessage message) throws KVException {
+            if (binary) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                message.writeFrame(bytes);
+                return ByteBuffer.wrap(bytes.toByteArray());
+            }
+            return ByteBuffer.wrap(message.toXML().getBytes(UTF8));
+        }
+
+        /* Doubles the input buffer, up to MAX_REQUEST_BYTES */
+        private boolean grow() {
+            if (in.capacity() >= MAX_REQUEST_BYTES) {
+                return false;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.min(in.capacity() * 2, MAX_REQUEST_BYTES));
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+            return true;
+        }
+
+        private void setReading(boolean reading) {
+            if (reading) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package kvstore;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A set-associative cache like KVCache whose keys and values live outside
+ * the Java heap, so that a large cache adds next to nothing to the work of
+ * the garbage collector. Each entry is written, two bytes a character, into
+ * a chunk from a SlabAllocator of direct ByteBuffers; the heap holds only
+ * primitive arrays describing the slots. Keys are compared in place, and
+ * only a hit decodes its value into a String.
+ *
+ * Set selection, locking and eviction follow KVCache: a read-write lock per set, and
+ * second-chance replacement unless another EvictionPolicy is given. An
+ * entry too large for a slab is not cached. Expiry and admission filters
+ * are not supported.
+ */
+public class OffHeapKVCache implements KVCacheInterface {
+
+    private static final int NONE = SlotQueues.NONE;
+
+    private final int numSets;
+    private final int maxElemsPerSet;
+    private final EvictionPolicy policy;
+    private final SlabAllocator slabs = new SlabAllocator();
+    private final CacheStats stats;
+    private final Lock[] readLocks;
+    private final Lock[] writeLocks;
+
+    /* Per slot; a slot whose chunk is NO_CHUNK is empty */
+    private final long[] chunks;
+    private final int[] hashes;
+    private final int[] keyLengths;
+    private final int[] valueLengths;
+
+    /**
+     * Constructs a second-chance-replacement off-heap cache.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     */
+    public OffHeapKVCache(int numSets, int maxElemsPerSet) {
+        this(new ClockPolicy(numSets, maxElemsPerSet));
+    }
+
+    /**
+     * Constructs an off-heap cache using the given eviction policy, which
+     * must not be shared with any other cache. The shape of the cache is the
+     * shape the policy was made for.
+     *
+     * @param policy eviction policy to use
+     */
+    public OffHeapKVCache(EvictionPolicy policy) {
+        this.policy = policy;
+        this.numSets = policy.getNumSets();
+        this.maxElemsPerSet = policy.getMaxElemsPerSet();
+        int slots = numSets * maxElemsPerSet;
+        chunks = new long[slots];
+        hashes = new int[slots];
+        keyLengths = new int[slots];
+        valueLengths = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            chunks[i] = SlabAllocator.NO_CHUNK;
+        }
+        stats = new CacheStats(numSets);
+        policy.setStats(stats);
+        readLocks = new Lock[numSets];
+        writeLocks = new Lock[numSets];
+        for (int i = 0; i < numSets; i++) {
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            readLocks[i] = new TimedLock(lock.readLock(), stats, i);
+            writeLocks[i] = new TimedLock(lock.writeLock(), stats, i);
+        }
+    }
+
+    /**
+     * Retrieves an entry from the cache. Assumes the read lock or the write
+     * lock for the corresponding set is held by the caller.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    @Override
+    public String get(String key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            stats.add(getSetId(key), CacheStats.Counter.MISSES, 1);
+            return null;
+        }
+        int setId = slot / maxElemsPerSet;
+        stats.add(setId, CacheStats.Counter.HITS, 1);
+        policy.accessed(setId, slot);
+        return read(slot, keyLengths[slot], valueLengths[slot]);
+    }
+
+    /**
+     * Adds an entry to this cache, replacing any entry for the same key and
+     * evicting one if the set is full. Assumes the write lock for the
+     * corresponding set is held by the caller.
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     */
+    @Override
+    public void put(String key, String value) {
+        int setId = getSetId(key);
+        int bytes = 2 * (key.length() + value.length());
+        int slot = find(key);
+        if (slot != NONE) {
+            if (SlabAllocator.sameClass(bytes, entryBytes(slot))) {
+                valueLengths[slot] = value.length();
+                write(slot, key, value);
+                policy.accessed(setId, slot);
+                return;
+            }
+            remove(setId, slot);
+        }
+        long chunk = slabs.allocate(bytes);
+        if (chunk == SlabAllocator.NO_CHUNK) {
+            return;
+        }
+        slot = emptySlot(setId);
+        if (slot == NONE) {
+            slot = policy.evict(setId);
+            release(setId, slot);
+            stats.add(setId, CacheStats.Counter.EVICTIONS, 1);
+        }
+        chunks[slot] = chunk;
+        hashes[slot] = key.hashCode();
+        keyLengths[slot] = key.length();
+        valueLengths[slot] = value.length();
+        write(slot, key, value);
+        policy.inserted(setId, slot, hashes[slot]);
+        stats.add(setId, CacheStats.Counter.INSERTIONS, 1);
+        stats.add(setId, CacheStats.Counter.ENTRIES, 1);
+    }
+
+    /**
+     * Removes an entry from this cache, if there is one. Assumes the write
+     * lock for the corresponding set is held by the caller.
+     *
+     * @param key key whose entry is to be removed
+     */
+    @Override
+    public void del(String key) {
+        int slot = find(key);
+        if (slot != NONE) {
+            remove(getSetId(key), slot);
+        }
+    }
+
+    @Override
+    public Lock getLock(String key) {
+        return writeLocks[getSetId(key)];
+    }
+
+    @Override
+    public Lock getReadLock(String key) {
+        return readLocks[getSetId(key)];
+    }
+
+    @Override
+    public List<Lock> getLocks(Collection<String> keys) {
+        TreeSet<Integer> setIds = new TreeSet<Integer>();
+        for (String key : keys) {
+            setIds.add(getSetId(key));
+        }
+        List<Lock> locks = new ArrayList<Lock>(setIds.size());
+        for (int setId : setIds) {
+            locks.add(writeLocks[setId]);
+        }
+        return locks;
+    }
+
+    /**
+     * @return bytes of off-heap chunks holding entries
+     */
+    @Override
+    public long getBytesUsed() {
+        return slabs.getBytesUsed();
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return bytes of off-heap memory set aside for entries, used or not
+     */
+    public long getBytesReserved() {
+        return slabs.getBytesReserved();
+    }
+
+    private int getSetId(String key) {
+        return KVCache.setIndex(key.hashCode(), numSets);
+    }
+
+    private int entryBytes(int slot) {
+        return 2 * (keyLengths[slot] + valueLengths[slot]);
+    }
+
+    /* Slot holding key, or NONE */
+    private int find(String key) {
+        int hash = key.hashCode();
+        int base = getSetId(key) * maxElemsPerSet;
+        for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+            if (chunks[slot] != SlabAllocator.NO_CHUNK && hashes[slot] == hash
+                    && keyLengths[slot] == key.length() && keyEquals(slot, key)) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private boolean keyEquals(int slot, String key) {
+        ByteBuffer slab = slabs.slab(chunks[slot]);
+        int offset = SlabAllocator.offset(chunks[slot]);
+        for (int i = 0; i < key.length(); i++) {
+            if (slab.getChar(offset + 2 * i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* The last empty slot, the same one KVCache would choose */
+    private int emptySlot(int setId) {
+        int base = setId * maxElemsPerSet;
+        for (int slot = base + maxElemsPerSet - 1; slot >= base; slot--) {
+            if (chunks[slot] == SlabAllocator.NO_CHUNK) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private void write(int slot, String key, String value) {
+        ByteBuffer slab = slabs.slab(chunks[slot]);
+        int offset = SlabAllocator.offset(chunks[slot]);
+        for (int i = 0; i < key.length(); i++, offset += 2) {
+            slab.putChar(offset, key.charAt(i));
+        }
+        for (int i = 0; i < value.length(); i++, offset += 2) {
+            slab.putChar(offset, value.charAt(i));
+        }
+    }
+
+    private void remove(int setId, int slot) {
+        policy.removed(setId, slot);
+        release(setId, slot);
+    }
+
+    /* Frees the chunk of a slot the policy has already forgotten */
+    private void release(int setId, int slot) {
+        slabs.free(chunks[slot], entryBytes(slot));
+        chunks[slot] = SlabAllocator.NO_CHUNK;
+        stats.add(setId, CacheStats.Counter.ENTRIES, -1);
+    }
+
+    /**
+     * Serialize this cache to XML in the same format as KVCache.toXML.
+     */
+    @Override
+    public String toXML() {
+        try {
+            StringWriter sw = new StringWriter();
+            XMLWriter xml = new XMLWriter(sw);
+            xml.startDocument(false);
+            xml.startElement("KVCache");
+            for (int i = 0; i < numSets; i++) {
+                xml.startElement("Set");
+                xml.attribute("Id", "" + i);
+                int base = i * maxElemsPerSet;
+                for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+                    if (chunks[slot] != SlabAllocator.NO_CHUNK) {
+                        xml.startElement("CacheEntry");
+                        xml.attribute("isReferenced", "" + policy.isReferenced(slot));
+                        xml.textElement("Key", read(slot, 0, keyLengths[slot]));
+                        xml.textElement("Value", read(slot, keyLengths[slot], valueLengths[slot]));
+                        xml.endElement();
+                    }
+                }
+                xml.endElement();
+            }
+            xml.endDocument();
+            return sw.toString();
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            return null;
+        }
+    }
+
+    private String read(int slot, int from, int length) {
+        ByteBuffer slab = slabs.slab(chunks[slot]);
+        int offset = SlabAllocator.offset(chunks[slot]) + 2 * from;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = slab.getChar(offset + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return toXML();
+    }
+
+}
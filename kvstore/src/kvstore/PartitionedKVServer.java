@@ -0,0 +1,501 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A shared-nothing alternative to KVServer. The keyspace is split into
+ * shards, each with its own KVCache and KVStore that only the shard's own
+ * thread ever touches, so no locks are taken on the data. A request is
+ * routed to the shard that owns its key through a lock-free queue, and the
+ * calling thread waits for the shard to carry it out. With one shard per
+ * core, throughput scales with cores instead of with lock contention.
+ *
+ * The same write-through policy as KVServer is followed within each shard.
+ * A batch is split by shard; each shard carries out its part atomically, but
+ * the parts on different shards are not isolated from each other.
+ */
+public class PartitionedKVServer implements BatchKeyValueInterface {
+
+    private final Shard[] shards;
+
+    /**
+     * Constructs a PartitionedKVServer and starts a thread for each shard.
+     *
+     * @param numShards number of shards, for example one per core
+     * @param numSets the number of sets in the data cache of each shard
+     * @param maxElemsPerSet the size of each set in the data caches
+     */
+    public PartitionedKVServer(int numShards, int numSets, int maxElemsPerSet) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("numShards must be positive");
+        }
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard(i, numSets, maxElemsPerSet);
+        }
+    }
+
+    /**
+     * Performs put request on the cache and store of the shard owning key.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException if key or value is too long
+     */
+    @Override
+    public void put(final String key, final String value) throws KVException {
+        KVServer.checkKey(key);
+        KVServer.checkValue(value);
+        call(key, new Task<Void>() {
+            @Override
+            Void run(Shard shard) {
+                shard.put(key, value);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Performs get request on the shard owning key, filling its cache from
+     * its store on a miss.
+     *
+     * @param  key String key
+     * @return String value associated with key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(final String key) throws KVException {
+        KVServer.checkKey(key);
+        return call(key, new Task<String>() {
+            @Override
+            String run(Shard shard) throws KVException {
+                return shard.get(key);
+            }
+        });
+    }
+
+    /**
+     * Performs del request on the shard owning key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(final String key) throws KVException {
+        KVServer.checkKey(key);
+        call(key, new Task<Void>() {
+            @Override
+            Void run(Shard shard) throws KVException {
+                shard.del(key);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Performs a batch of put requests. Every key and value is checked before
+     * any of them is written, then each shard writes its keys in parallel.
+     *
+     * @param  pairs keys and the values to put for them
+     * @throws KVException if any key or value is invalid or too long
+     */
+    @Override
+    public void putAll(Map<String, String> pairs) throws KVException {
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            KVServer.checkKey(pair.getKey());
+            KVServer.checkValue(pair.getValue());
+        }
+        List<List<String>> keysByShard = split(pairs.keySet());
+        List<Task<Void>> tasks = new ArrayList<Task<Void>>();
+        for (int i = 0; i < shards.length; i++) {
+            final List<String> keys = keysByShard.get(i);
+            if (keys.isEmpty()) {
+                continue;
+            }
+            final Map<String, String> part = new LinkedHashMap<String, String>();
+            for (String key : keys) {
+                part.put(key, pairs.get(key));
+            }
+            tasks.add(shards[i].submit(new Task<Void>() {
+                @Override
+                Void run(Shard shard) {
+                    for (Map.Entry<String, String> pair : part.entrySet()) {
+                        shard.put(pair.getKey(), pair.getValue());
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Task<Void> task : tasks) {
+            task.await();
+        }
+    }
+
+    /**
+     * Performs a batch of get requests, each shard looking up its keys in
+     * parallel.
+     *
+     * @param  keys keys to look up
+     * @return values of the keys that exist, in the order the keys were given;
+     *         keys that do not exist are left out
+     * @throws KVException if any key is invalid or too long
+     */
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) throws KVException {
+        for (String key : keys) {
+            KVServer.checkKey(key);
+        }
+        List<List<String>> keysByShard = split(keys);
+        List<Task<Map<String, String>>> tasks = new ArrayList<Task<Map<String, String>>>();
+        for (int i = 0; i < shards.length; i++) {
+            final List<String> part = keysByShard.get(i);
+            if (part.isEmpty()) {
+                continue;
+            }
+            tasks.add(shards[i].submit(new Task<Map<String, String>>() {
+                @Override
+                Map<String, String> run(Shard shard) throws KVException {
+                    Map<String, String> found = new LinkedHashMap<String, String>();
+                    for (String key : part) {
+                        String value = shard.find(key);
+                        if (value != null) {
+                            found.put(key, value);
+                        }
+                    }
+                    return found;
+                }
+            }));
+        }
+        Map<String, String> found = new LinkedHashMap<String, String>();
+        for (Task<Map<String, String>> task : tasks) {
+            found.putAll(task.await());
+        }
+        // back into the order the keys were given
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (String key : keys) {
+            String value = found.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Performs a batch of del requests, each shard deleting its keys in
+     * parallel. Keys that do not exist are skipped.
+     *
+     * @param  keys keys to delete
+     * @return the keys that existed and were deleted
+     * @throws KVException if any key is invalid or too long
+     */
+    @Override
+    public Set<String> delAll(Collection<String> keys) throws KVException {
+        for (String key : keys) {
+            KVServer.checkKey(key);
+        }
+        List<List<String>> keysByShard = split(keys);
+        List<Task<Set<String>>> tasks = new ArrayList<Task<Set<String>>>();
+        for (int i = 0; i < shards.length; i++) {
+            final List<String> part = keysByShard.get(i);
+            if (part.isEmpty()) {
+                continue;
+            }
+            tasks.add(shards[i].submit(new Task<Set<String>>() {
+                @Override
+                Set<String> run(Shard shard) {
+                    Set<String> deleted = new HashSet<String>();
+                    for (String key : part) {
+                        if (shard.remove(key)) {
+                            deleted.add(key);
+                        }
+                    }
+                    return deleted;
+                }
+            }));
+        }
+        Set<String> deleted = new HashSet<String>();
+        for (Task<Set<String>> task : tasks) {
+            deleted.addAll(task.await());
+        }
+        return deleted;
+    }
+
+    /**
+     * Check if the server has a given key without touching the cache.
+     *
+     * @param key key to check for membership in store
+     * @return whether the key exists
+     * @throws KVException if the key is invalid
+     */
+    public boolean hasKey(final String key) throws KVException {
+        KVServer.checkKey(key);
+        return call(key, new Task<Boolean>() {
+            @Override
+            Boolean run(Shard shard) {
+                return shard.store.hasKey(key);
+            }
+        });
+    }
+
+    /**
+     * Stops the shard threads once they have finished the requests already
+     * queued. Requests made afterwards fail with ERROR_SERVER_SHUT_DOWN.
+     */
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    /**
+     * @return number of shards the keyspace is split into
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * A snapshot of the counters of every shard's cache, with the sets of
+     * shard i numbered after those of shard i - 1.
+     *
+     * @return counters for each set of every shard
+     */
+    @Override
+    public CacheStats getCacheStats() {
+        List<CacheStats> parts = new ArrayList<CacheStats>(shards.length);
+        for (Shard shard : shards) {
+            parts.add(shard.cache.getStats());
+        }
+        return CacheStats.concat(parts);
+    }
+
+    /**
+     * The shard that owns a key. The hash is scrambled differently from the
+     * way KVCache picks a set, so that the keys of one shard still spread
+     * over all the sets of its cache.
+     *
+     * @param key String key
+     * @return index of the owning shard
+     */
+    int shardIndex(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h >>> 1) % shards.length;
+    }
+
+    /**
+     * Carries out a task on the shard owning a key and waits for it.
+     *
+     * @param key String key
+     * @param task work to do on the shard's thread
+     * @return what the task returned
+     * @throws KVException thrown by the task, or ERROR_SERVER_SHUT_DOWN
+     */
+    <V> V call(String key, Task<V> task) throws KVException {
+        return shards[shardIndex(key)].submit(task).await();
+    }
+
+    private List<List<String>> split(Collection<String> keys) {
+        List<List<String>> byShard = new ArrayList<List<String>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<String>());
+        }
+        for (String key : keys) {
+            byShard.get(shardIndex(key)).add(key);
+        }
+        return byShard;
+    }
+
+    /** This method is purely for convenience and will not be tested. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Shard shard : shards) {
+            sb.append(shard.store.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A request for a shard to carry out on its own thread, which the caller
+     * waits for.
+     */
+    abstract static class Task<V> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private V result;
+        private KVException error;
+        private Throwable failure;
+
+        abstract V run(Shard shard) throws KVException;
+
+        void complete(Shard shard) {
+            try {
+                result = run(shard);
+            } catch (KVException e) {
+                error = e;
+            } catch (Throwable t) {
+                // rethrown on the calling thread; the shard's thread carries on
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void fail(KVException e) {
+            error = e;
+            done.countDown();
+        }
+
+        V await() throws KVException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * One partition of the keyspace: a cache and store slice and the only
+     * thread that uses them.
+     */
+    static class Shard implements Runnable {
+
+        private final KVCache cache;
+        private final KVStore store = new KVStore();
+        private final ConcurrentLinkedQueue<Task<?>> queue =
+                new ConcurrentLinkedQueue<Task<?>>();
+        private final Thread thread;
+
+        /* Whether the thread is, or is about to be, parked on an empty queue */
+        private volatile boolean parked = false;
+        private volatile boolean running = true;
+
+        Shard(int index, int numSets, int maxElemsPerSet) {
+            cache = new KVCache(numSets, maxElemsPerSet);
+            thread = new Thread(this, "shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queues a task for the shard's thread. Once the shard is shut down
+         * the task fails instead; if shutdown races the offer, whichever of
+         * the thread and the caller takes the task back off the queue first
+         * decides which happens.
+         */
+        <V> Task<V> submit(Task<V> task) {
+            if (running) {
+                queue.offer(task);
+                if (parked) {
+                    LockSupport.unpark(thread);
+                }
+                if (running || !queue.remove(task)) {
+                    return task;
+                }
+            }
+            task.fail(new KVException(ERROR_SERVER_SHUT_DOWN));
+            return task;
+        }
+
+        /**
+         * Carries out queued tasks, parking when there are none. The queue is
+         * checked again after announcing the park so that a task offered in
+         * between is never missed.
+         */
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Task<?> task = queue.poll();
+                if (task != null) {
+                    task.complete(this);
+                    continue;
+                }
+                parked = true;
+                if (queue.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+
+        /* The following run on the shard's thread only */
+
+        void put(String key, String value) {
+            cache.put(key, value);
+            store.put(key, value);
+        }
+
+        String get(String key) throws KVException {
+            String value = cache.get(key);
+            if (value == null) {
+                value = store.get(key);
+                cache.put(key, value);
+            }
+            return value;
+        }
+
+        /* Like get, but returns null for a missing key */
+        String find(String key) throws KVException {
+            String value = cache.get(key);
+            if (value == null && store.hasKey(key)) {
+                value = store.get(key);
+                cache.put(key, value);
+            }
+            return value;
+        }
+
+        void del(String key) throws KVException {
+            store.get(key);
+            cache.del(key);
+            store.del(key);
+        }
+
+        boolean remove(String key) {
+            if (!store.hasKey(key)) {
+                return false;
+            }
+            cache.del(key);
+            try {
+                store.del(key);
+            } catch (KVException e) {
+                // only this thread changes the store, so the key is there
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package kvstore;
+
+/**
+ * S3-FIFO replacement. New keys enter a small probationary queue holding
+ * about a tenth of the set; those used again before reaching its head move
+ * to the main queue and the rest are dropped, with their hashes kept in a
+ * ghost list. A key seen in the ghost list goes straight to the main queue.
+ * The main queue is a FIFO in which each use, up to three, buys an entry one
+ * more trip round. One-off scans therefore pass through the small queue
+ * without disturbing the main one.
+ */
+public class S3FIFOPolicy extends EvictionPolicy {
+
+    private static final int SMALL = 0;
+    private static final int MAIN = 1;
+    private static final int MAX_FREQUENCY = 3;
+
+    private final SlotQueues queues;
+    private final GhostList ghosts;
+    private final int smallTarget;
+
+    /* Per slot; frequency is bumped by readers holding only the read lock */
+    private final byte[] frequency;
+    private final int[] hashes;
+
+    /* Per set: whether the last victim was added to the ghost list */
+    private final boolean[] ghosted;
+
+    /**
+     * @param numSets the number of sets of the cache
+     * @param maxElemsPerSet the size of each set
+     */
+    public S3FIFOPolicy(int numSets, int maxElemsPerSet) {
+        super(numSets, maxElemsPerSet);
+        queues = new SlotQueues(numSets, maxElemsPerSet, 2);
+        ghosts = new GhostList(numSets, maxElemsPerSet);
+        smallTarget = Math.max(1, maxElemsPerSet / 10);
+        frequency = new byte[numSets * maxElemsPerSet];
+        hashes = new int[numSets * maxElemsPerSet];
+        ghosted = new boolean[numSets];
+    }
+
+    @Override
+    public void accessed(int setId, int slot) {
+        if (frequency[slot] < MAX_FREQUENCY) {
+            frequency[slot]++;
+        }
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return frequency[slot] > 0;
+    }
+
+    @Override
+    public void inserted(int setId, int slot, int hash) {
+        frequency[slot] = 0;
+        hashes[slot] = hash;
+        int q = ghosts.remove(setId, hash) ? MAIN : SMALL;
+        queues.append(queues.queue(setId, q), slot);
+    }
+
+    @Override
+    public void removed(int setId, int slot) {
+        queues.unlink(slot);
+        frequency[slot] = 0;
+    }
+
+    /* Puts the victim back at the tail of the queue it left */
+    @Override
+    public void retained(int setId, int slot, int hash) {
+        int q = MAIN;
+        if (ghosted[setId]) {
+            ghosts.removeNewest(setId);
+            q = SMALL;
+        }
+        queues.append(queues.queue(setId, q), slot);
+    }
+
+    @Override
+    public int evict(int setId) {
+        int small = queues.queue(setId, SMALL);
+        int main = queues.queue(setId, MAIN);
+        while (true) {
+            if (queues.size(small) > smallTarget || queues.size(main) == 0) {
+                int slot = queues.head(small);
+                queues.unlink(slot);
+                if (frequency[slot] > 0) {
+                    frequency[slot] = 0;
+                    queues.append(main, slot);
+                    secondChance(setId);
+                } else {
+                    ghosts.add(setId, hashes[slot]);
+                    ghosted[setId] = true;
+                    return slot;
+                }
+            } else {
+                int slot = queues.head(main);
+                if (frequency[slot] > 0) {
+                    frequency[slot]--;
+                    queues.rotate(main);
+                    secondChance(setId);
+                } else {
+                    queues.unlink(slot);
+                    ghosted[setId] = false;
+                    return slot;
+                }
+            }
+        }
+    }
+
+}
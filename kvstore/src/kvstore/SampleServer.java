@@ -4,11 +4,28 @@ import java.net.InetAddress;
 
 public class SampleServer {
 
+    /**
+     * Usage: SampleServer [pool | per-connection] [threads]
+     * "pool" (the default) services connections on a fixed ThreadPool of the
+     * given size; "per-connection" gives each connection its own thread, with
+     * at most the given number running at once.
+     */
     public static void main(String[] args) {
         try {
+            String mode = (args.length > 0) ? args[0] : "pool";
+            int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+            JobExecutor executor;
+            if (mode.equals("per-connection")) {
+                executor = new ThreadPerJobExecutor(threads);
+            } else if (mode.equals("pool")) {
+                executor = new ThreadPool(threads);
+            } else {
+                System.err.println("Usage: SampleServer [pool | per-connection] [threads]");
+                return;
+            }
             String hostname = InetAddress.getLocalHost().getHostAddress();
             SocketServer ss = new SocketServer(hostname, 8080);
-            ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+            ss.addHandler(new ServerClientHandler(new KVServer(100, 10), executor));
             ss.connect();
             System.out.println("Server listening for clients at " + ss.getHostname());
             ss.start();
@@ -2,23 +2,44 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
+ * It is also a MessageHandler, so that a NioSocketServer can hand it
+ * requests it has already read off the network.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements NetworkHandler, MessageHandler {
 
-    private KVServer kvServer;
-    private ThreadPool threadPool;
+    private BatchKeyValueInterface kvServer;
+    private JobExecutor threadPool;
+    private volatile AdmissionController admission = new AdmissionController();
+
+    /* Runs binary-framed connections, each on a thread of its own */
+    private final JobExecutor connectionExecutor;
+
+    /* Longest the accepting thread spends turning away a connection */
+    private static final int REJECT_TIMEOUT_MILLISECONDS = 100;
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
      *
-     * @param kvServer KVServer to carry out requests
+     * @param kvServer KVServer, or other server, to carry out requests
      */
-    public ServerClientHandler(KVServer kvServer) {
+    public ServerClientHandler(BatchKeyValueInterface kvServer) {
         this(kvServer, 1);
     }
 
@@ -26,17 +47,53 @@ public class ServerClientHandler implements NetworkHandler {
      * Constructs a ServerClientHandler with ThreadPool of thread equal to
      * the number passed in as connections.
      *
-     * @param kvServer KVServer to carry out requests
+     * @param kvServer KVServer, or other server, to carry out requests
      * @param connections number of threads in threadPool to service requests
      */
-    public ServerClientHandler(KVServer kvServer, int connections) {
+    public ServerClientHandler(BatchKeyValueInterface kvServer, int connections) {
+        this(kvServer, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a ServerClientHandler that runs its jobs on the executor
+     * passed in. A ThreadPerJobExecutor gives every connection its own
+     * thread, which suits clients that hold binary-framed connections open.
+     * On any other executor a binary-framed connection is handed from its
+     * worker to a thread of its own, up to SERVER_MAX_CONNECTIONS at once, so
+     * that quiet connections never hold the workers.
+     *
+     * @param kvServer KVServer, or other server, to carry out requests
+     * @param executor runs the job for each connection or request
+     */
+    public ServerClientHandler(BatchKeyValueInterface kvServer, JobExecutor executor) {
         this.kvServer = kvServer;
-        this.threadPool = new ThreadPool(connections);
+        this.threadPool = executor;
+        this.connectionExecutor = (executor instanceof ThreadPerJobExecutor)
+                ? executor : new ThreadPerJobExecutor(SERVER_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Replaces the AdmissionController that decides whether a request that
+     * has waited in the queue is still worth carrying out.
+     *
+     * @param admission AdmissionController to consult before each request
+     */
+    public void setAdmissionController(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return the AdmissionController consulted before each request, which
+     *         also reports queueing delay and how many requests were dropped
+     */
+    public AdmissionController getAdmissionController() {
+        return admission;
     }
 
     /**
      * Creates a job to service the request for a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * in the thread pool. Ignore any InterruptedExceptions. If the pool turns
+     * the job away, the client is sent ERROR_SERVER_BUSY instead.
      *
      * @param client Socket connected to the client with the request
      */
@@ -45,18 +102,277 @@ public class ServerClientHandler implements NetworkHandler {
     	try{
     		threadPool.addJob(new ClientHandler(client));
     	}
+    	catch(RejectedExecutionException e){
+    		reject(client);
+    	}
+    	catch(Exception e){
+    		//ignore
+    	}
+    }
+
+    /**
+     * Creates a job to carry out a request that has already been parsed and
+     * enqueues that job in the thread pool. Ignore any InterruptedExceptions.
+     *
+     * @param request KVMessage received from a client
+     * @param responder where to send the response to the request
+     */
+    @Override
+    public void handle(KVMessage request, Responder responder) {
+    	request.setEnqueueTime(System.currentTimeMillis());
+    	try{
+    		threadPool.addJob(new RequestJob(request, responder));
+    	}
+    	catch(RejectedExecutionException e){
+    		responder.respond(new KVMessage(RESP, ERROR_SERVER_BUSY));
+    	}
     	catch(Exception e){
     		//ignore
     	}
     }
 
+    /**
+     * Turns away a connection the thread pool has no room for with an
+     * ERROR_SERVER_BUSY response, in the wire format of its request. This
+     * runs on the accepting thread, so it waits at most
+     * REJECT_TIMEOUT_MILLISECONDS for the request to arrive.
+     *
+     * @param client Socket connected to the client with the request
+     */
+    private void reject(Socket client) {
+    	KVMessage busy = new KVMessage(RESP, ERROR_SERVER_BUSY);
+    	try{
+    		long deadline = System.currentTimeMillis() + REJECT_TIMEOUT_MILLISECONDS;
+    		client.setSoTimeout(REJECT_TIMEOUT_MILLISECONDS);
+    		InputStream in = client.getInputStream();
+    		if(in.read() == FRAME_MAGIC){
+    			busy.sendFrame(client.getOutputStream());
+    		}
+    		else{
+    			// read the rest of the request so the response is not lost
+    			// to a reset when the connection closes
+    			byte[] discard = new byte[1024];
+    			while(in.read(discard) >= 0
+    					&& System.currentTimeMillis() < deadline){
+    			}
+    			busy.sendMessage(client);
+    		}
+    	}
+    	catch(Exception e){
+    		//nothing else we can do
+    	}
+    	finally{
+    		try{
+    			client.close();
+    		}
+    		catch(IOException e){
+    			//ignore
+    		}
+    	}
+    }
+
+    /**
+     * Carries out a request on the KVServer, unless the AdmissionController
+     * finds it has waited in the queue for too long.
+     *
+     * @param request parsed request from the client
+     * @return response to send back to the client
+     */
+    private KVMessage admitAndProcess(KVMessage request) {
+    	KVMessage rejection = admission.admit(request, System.currentTimeMillis());
+    	return (rejection != null) ? rejection : process(request);
+    }
+
+    /**
+     * Carries out a request on the KVServer.
+     *
+     * @param request parsed request from the client
+     * @return response to send back to the client
+     */
+    KVMessage process(KVMessage request) {
+    	KVMessage response = null;
+    	try{
+    		if(request.getMsgType().equals(PUT_REQ)){
+    			String key = request.getKey();
+    			String value = request.getValue();
+    			kvServer.put(key, value);
+    			
+    			response = new KVMessage(RESP, SUCCESS);
+    		}
+    		else if(request.getMsgType().equals(GET_REQ)){
+    			String key = request.getKey();
+    			String value = kvServer.get(key);
+    			
+    			response = new KVMessage(RESP);
+    			response.setKey(key);
+    			response.setValue(value);
+    		}
+    		else if(request.getMsgType().equals(DEL_REQ)){
+    			String key = request.getKey();
+    			kvServer.del(key);
+    			
+    			response = new KVMessage(RESP, SUCCESS);
+    		}
+    		else if(request.getMsgType().equals(MULTI_PUT_REQ)){
+    			Map<String, String> pairs = new LinkedHashMap<String, String>();
+    			for(KVMessage entry : request.getEntries()){
+    				pairs.put(entry.getKey(), entry.getValue());
+    			}
+    			kvServer.putAll(pairs);
+    			
+    			response = new KVMessage(MULTI_RESP);
+    			for(int i = 0; i < request.getEntries().size(); i++){
+    				response.addEntry(new KVMessage(RESP, SUCCESS));
+    			}
+    		}
+    		else if(request.getMsgType().equals(MULTI_GET_REQ)){
+    			List<String> keys = keysOf(request);
+    			Map<String, String> values = kvServer.getAll(keys);
+    			
+    			response = new KVMessage(MULTI_RESP);
+    			for(String key : keys){
+    				String value = values.get(key);
+    				if(value == null){
+    					response.addEntry(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+    				}else{
+    					KVMessage entry = new KVMessage(RESP);
+    					entry.setKey(key);
+    					entry.setValue(value);
+    					response.addEntry(entry);
+    				}
+    			}
+    		}
+    		else if(request.getMsgType().equals(MULTI_DEL_REQ)){
+    			List<String> keys = keysOf(request);
+    			Set<String> deleted = kvServer.delAll(keys);
+    			
+    			response = new KVMessage(MULTI_RESP);
+    			for(String key : keys){
+    				response.addEntry(new KVMessage(RESP,
+    						deleted.contains(key) ? SUCCESS : ERROR_NO_SUCH_KEY));
+    			}
+    		}
+    		else if(request.getMsgType().equals(STATS_REQ)){
+    			response = statsResponse(kvServer.getCacheStats());
+    		}
+    		else{
+    			throw new KVException(ERROR_INVALID_FORMAT);
+    		}
+    	}
+    	catch(KVException e){
+    		response = e.getKVMessage();
+    	}
+    	return response;
+    }
+
+    /**
+     * Builds the answer to a STATS_REQ: the totals, then one entry per set in
+     * set order. A response holds at most MAX_BATCH_ENTRIES entries, so when
+     * there are more sets only those with the most lookups are listed.
+     *
+     * @param stats counters of the server's cache
+     * @return MULTI_RESP of RESP entries keyed "total" and "set <id>"
+     */
+    static KVMessage statsResponse(CacheStats stats) {
+    	int numSets = stats.getNumSets();
+    	int[] setIds = new int[numSets];
+    	for(int i = 0; i < numSets; i++){
+    		setIds[i] = i;
+    	}
+    	if(numSets > MAX_BATCH_ENTRIES - 1){
+    		setIds = busiestSets(stats, MAX_BATCH_ENTRIES - 1);
+    	}
+    	KVMessage response = new KVMessage(MULTI_RESP);
+    	response.addEntry(statsEntry("total", stats.describeTotal()));
+    	for(int setId : setIds){
+    		response.addEntry(statsEntry("set " + setId, stats.describe(setId)));
+    	}
+    	return response;
+    }
+
+    /* Ids of the count sets with the most lookups, in set order */
+    private static int[] busiestSets(CacheStats stats, int count) {
+    	int numSets = stats.getNumSets();
+    	long[] lookups = new long[numSets];
+    	for(int i = 0; i < numSets; i++){
+    		lookups[i] = stats.getLookups(i);
+    	}
+    	long[] sorted = lookups.clone();
+    	Arrays.sort(sorted);
+    	long threshold = sorted[numSets - count];
+    	int above = 0;
+    	for(long n : lookups){
+    		if(n > threshold){
+    			above++;
+    		}
+    	}
+    	// sets at the threshold fill whatever room the busier ones leave
+    	int atThreshold = count - above;
+    	int[] setIds = new int[count];
+    	int next = 0;
+    	for(int i = 0; i < numSets; i++){
+    		if(lookups[i] > threshold || (lookups[i] == threshold && atThreshold-- > 0)){
+    			setIds[next++] = i;
+    		}
+    	}
+    	return setIds;
+    }
+
+    private static KVMessage statsEntry(String key, String value) {
+    	KVMessage entry = new KVMessage(RESP);
+    	entry.setKey(key);
+    	entry.setValue(value);
+    	return entry;
+    }
+
+    private List<String> keysOf(KVMessage request) {
+    	List<String> keys = new ArrayList<String>(request.getEntries().size());
+    	for(KVMessage entry : request.getEntries()){
+    		keys.add(entry.getKey());
+    	}
+    	return keys;
+    }
+
+    /**
+     * Job that carries out a single parsed request. It goes in the lane for
+     * its type when the thread pool schedules jobs with a LaneQueue.
+     */
+    private class RequestJob implements LaneQueue.Job {
+
+        private final KVMessage request;
+        private final Responder responder;
+
+        RequestJob(KVMessage request, Responder responder) {
+            this.request = request;
+            this.responder = responder;
+        }
+
+        @Override
+        public LaneQueue.Lane getLane() {
+            return LaneQueue.laneOf(request);
+        }
+
+        @Override
+        public void run() {
+            responder.respond(admitAndProcess(request));
+        }
+    }
+
     /**
      * Runnable class with routine to service a request from the client.
+     * A binary-framed connection is served by the same job for as long as it
+     * stays open, after moving to the connection executor.
      */
     private class ClientHandler implements Runnable {
 
         private Socket client;
 
+        /* When the connection was queued, taken as the arrival time of its first request */
+        private final long enqueueTime = System.currentTimeMillis();
+
+        /* Set once the connection is known to be binary-framed */
+        private InputStream in;
+
         /**
          * Construct a ClientHandler.
          *
@@ -68,50 +384,121 @@ public class ServerClientHandler implements NetworkHandler {
 
         /**
          * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return a response, there is nothing else we can do.
+         * result. The wire format is detected from the first byte of the
+         * request and the response is sent back in the same format; a
+         * binary-framed connection stays open for further requests, or is
+         * turned away with ERROR_SERVER_BUSY if SERVER_MAX_CONNECTIONS are
+         * open already. The
+         * delivery of the response is best-effort. If we are unable to
+         * return a response, there is nothing else we can do.
          */
         @Override
         public void run() {
-        	KVMessage response = null;
-        	try{
-        		KVMessage request = new KVMessage(client);
-        		if(request.getMsgType().equals(PUT_REQ)){
-        			String key = request.getKey();
-        			String value = request.getValue();
-        			kvServer.put(key, value);
-        			
-        			response = new KVMessage(RESP, SUCCESS);
-        		}
-        		else if(request.getMsgType().equals(GET_REQ)){
-        			String key = request.getKey();
-        			String value = kvServer.get(key);
-        			
-        			response = new KVMessage(RESP);
-        			response.setKey(key);
-        			response.setValue(value);
-        		}
-        		else if(request.getMsgType().equals(DEL_REQ)){
-        			String key = request.getKey();
-        			kvServer.del(key);
-        			
-        			response = new KVMessage(RESP, SUCCESS);
-        		}
-        		else{
-        			throw new KVException(ERROR_INVALID_FORMAT);
-        		}
-        	}
-        	catch(KVException e){
-        		response = e.getKVMessage();
-        	}
-        	finally{
-        		try{
-        			response.sendMessage(client);
-        		}
-        		catch(Exception e){
-        			//ignore
-        		}
-        	}
+            try {
+                if (in != null) {
+                    serveFrames();
+                    return;
+                }
+                InputStream stream = new BufferedInputStream(client.getInputStream());
+                stream.mark(1);
+                int firstByte = stream.read();
+                stream.reset();
+                if (firstByte != FRAME_MAGIC) {
+                    serveXML(stream);
+                    return;
+                }
+                in = stream;
+                if (threadPool == connectionExecutor) {
+                    serveFrames();
+                } else if (!connectionExecutor.offerJob(this)) {
+                    sendFrame(new KVMessage(RESP, ERROR_SERVER_BUSY),
+                            client.getOutputStream());
+                    close();
+                }
+            } catch (IOException e) {
+                // nothing else we can do
+                close();
+            }
+        }
+
+        /**
+         * Services a single XML request. The client signals the end of its
+         * request with EOF, so only one request is read from the connection.
+         */
+        private void serveXML(InputStream in) {
+            KVMessage response;
+            try {
+                KVMessage request = new KVMessage(in);
+                request.setEnqueueTime(enqueueTime);
+                response = admitAndProcess(request);
+            } catch (KVException e) {
+                response = e.getKVMessage();
+            }
+            try {
+                response.sendMessage(client);
+            } catch (Exception e) {
+                //ignore
+            }
+        }
+
+        /**
+         * Services binary-framed requests until the client closes the
+         * connection or leaves it idle for CONNECTION_IDLE_MILLISECONDS.
+         * Requests may be pipelined; responses are sent in request order and
+         * flushed once no further requests are already buffered.
+         */
+        private void serveFrames() throws IOException {
+            try {
+                client.setSoTimeout(CONNECTION_IDLE_MILLISECONDS);
+                OutputStream out = new BufferedOutputStream(
+                        client.getOutputStream());
+                boolean first = true;
+                while (true) {
+                    KVMessage request;
+                    try {
+                        request = KVMessage.receiveFrame(in);
+                    } catch (KVException e) {
+                        // a bad frame leaves the stream unsynchronized, so
+                        // report the error and drop the connection
+                        if (!ERROR_SOCKET_TIMEOUT.equals(
+                                e.getKVMessage().getMessage())) {
+                            sendFrame(e.getKVMessage(), out);
+                        }
+                        return;
+                    }
+                    if (request == null) {
+                        return;
+                    }
+                    // later requests were read as soon as they could be
+                    request.setEnqueueTime(first
+                            ? enqueueTime : System.currentTimeMillis());
+                    first = false;
+                    admitAndProcess(request).writeFrame(out);
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch (KVException e) {
+                // could not send the response, nothing else we can do
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                client.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+
+        private void sendFrame(KVMessage response, OutputStream out) {
+            try {
+                response.sendFrame(out);
+            } catch (KVException e) {
+                //ignore
+            }
         }
     }
 
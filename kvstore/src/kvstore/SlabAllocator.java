@@ -0,0 +1,132 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hands out chunks of off-heap memory carved from large direct ByteBuffer
+ * slabs. Chunks come in power-of-two size classes, each with its own free
+ * list, so freed chunks are reused by later entries of a similar size and
+ * the slabs themselves are never given back. A chunk is named by a handle
+ * holding its slab index and offset.
+ */
+class SlabAllocator {
+
+    static final long NO_CHUNK = -1;
+
+    static final int MIN_CHUNK_BYTES = 64;
+    static final int SLAB_BYTES = 1 << 20;
+
+    private static final int CLASSES =
+            Integer.numberOfTrailingZeros(SLAB_BYTES / MIN_CHUNK_BYTES) + 1;
+
+    /* Replaced, never changed in place, so readers need no lock */
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    /* The following are guarded by the lock on this object */
+    private final long[][] freeChunks = new long[CLASSES][];
+    private final int[] freeCount = new int[CLASSES];
+    private long bytesUsed = 0;
+
+    SlabAllocator() {
+        for (int i = 0; i < CLASSES; i++) {
+            freeChunks[i] = new long[16];
+        }
+    }
+
+    /**
+     * @param bytes size needed
+     * @return handle of a chunk of at least that size, or NO_CHUNK if it is
+     *         larger than a slab
+     */
+    synchronized long allocate(int bytes) {
+        int sizeClass = sizeClass(bytes);
+        if (sizeClass >= CLASSES) {
+            return NO_CHUNK;
+        }
+        if (freeCount[sizeClass] == 0) {
+            carve(sizeClass);
+        }
+        bytesUsed += chunkBytes(sizeClass);
+        return freeChunks[sizeClass][--freeCount[sizeClass]];
+    }
+
+    /**
+     * @param handle chunk from allocate
+     * @param bytes the size it was allocated for
+     */
+    synchronized void free(long handle, int bytes) {
+        int sizeClass = sizeClass(bytes);
+        push(sizeClass, handle);
+        bytesUsed -= chunkBytes(sizeClass);
+    }
+
+    /**
+     * @param bytes two sizes
+     * @return whether chunks for the two sizes are interchangeable
+     */
+    static boolean sameClass(int bytes, int otherBytes) {
+        return sizeClass(bytes) == sizeClass(otherBytes);
+    }
+
+    /**
+     * @param handle a chunk
+     * @return the slab containing it, to be read and written with absolute
+     *         gets and puts only
+     */
+    ByteBuffer slab(long handle) {
+        return slabs[(int) (handle >>> 32)];
+    }
+
+    static int offset(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * @return bytes in chunks handed out and not yet freed
+     */
+    synchronized long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * @return bytes of off-heap memory taken by all slabs
+     */
+    long getBytesReserved() {
+        return (long) slabs.length * SLAB_BYTES;
+    }
+
+    private static int sizeClass(int bytes) {
+        if (bytes <= MIN_CHUNK_BYTES) {
+            return 0;
+        }
+        int chunk = Integer.highestOneBit(bytes - 1) << 1;
+        return Integer.numberOfTrailingZeros(chunk / MIN_CHUNK_BYTES);
+    }
+
+    private static int chunkBytes(int sizeClass) {
+        return MIN_CHUNK_BYTES << sizeClass;
+    }
+
+    /* Splits a new slab into chunks of one class */
+    private void carve(int sizeClass) {
+        ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+        grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_BYTES);
+        long slabIndex = slabs.length;
+        slabs = grown;
+        int chunk = chunkBytes(sizeClass);
+        for (int offset = SLAB_BYTES - chunk; offset >= 0; offset -= chunk) {
+            push(sizeClass, (slabIndex << 32) | offset);
+        }
+    }
+
+    private void push(int sizeClass, long handle) {
+        long[] stack = freeChunks[sizeClass];
+        if (freeCount[sizeClass] == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            freeChunks[sizeClass] = stack;
+        }
+        stack[freeCount[sizeClass]++] = handle;
+    }
+
+}
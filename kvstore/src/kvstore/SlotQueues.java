@@ -0,0 +1,93 @@
+package kvstore;
+
+/**
+ * A fixed number of FIFO queues per cache set, threaded through the slots of
+ * the cache by index so that moving a slot between queues allocates nothing.
+ * A slot is in at most one queue at a time.
+ */
+class SlotQueues {
+
+    static final int NONE = -1;
+
+    private final int queuesPerSet;
+    private final int[] next;
+    private final int[] prev;
+    private final int[] queueOf;
+    private final int[] head;
+    private final int[] tail;
+    private final int[] size;
+
+    SlotQueues(int numSets, int maxElemsPerSet, int queuesPerSet) {
+        int slots = numSets * maxElemsPerSet;
+        int queues = numSets * queuesPerSet;
+        this.queuesPerSet = queuesPerSet;
+        next = new int[slots];
+        prev = new int[slots];
+        queueOf = new int[slots];
+        head = new int[queues];
+        tail = new int[queues];
+        size = new int[queues];
+        for (int i = 0; i < slots; i++) {
+            queueOf[i] = NONE;
+        }
+        for (int i = 0; i < queues; i++) {
+            head[i] = NONE;
+            tail[i] = NONE;
+        }
+    }
+
+    /* Index of queue q of a set, for the methods below */
+    int queue(int setId, int q) {
+        return setId * queuesPerSet + q;
+    }
+
+    int head(int queue) {
+        return head[queue];
+    }
+
+    int size(int queue) {
+        return size[queue];
+    }
+
+    /* Adds a slot that is in no queue to the tail of a queue */
+    void append(int queue, int slot) {
+        next[slot] = NONE;
+        prev[slot] = tail[queue];
+        if (tail[queue] == NONE) {
+            head[queue] = slot;
+        } else {
+            next[tail[queue]] = slot;
+        }
+        tail[queue] = slot;
+        queueOf[slot] = queue;
+        size[queue]++;
+    }
+
+    /* Takes a slot out of whichever queue it is in, if any */
+    void unlink(int slot) {
+        int queue = queueOf[slot];
+        if (queue == NONE) {
+            return;
+        }
+        if (prev[slot] == NONE) {
+            head[queue] = next[slot];
+        } else {
+            next[prev[slot]] = next[slot];
+        }
+        if (next[slot] == NONE) {
+            tail[queue] = prev[slot];
+        } else {
+            prev[next[slot]] = prev[slot];
+        }
+        queueOf[slot] = NONE;
+        size[queue]--;
+    }
+
+    /* Moves the head of a queue to its tail */
+    void rotate(int queue) {
+        int slot = head[queue];
+        unlink(slot);
+        append(queue, slot);
+    }
+
+}
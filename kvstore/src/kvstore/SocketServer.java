@@ -3,6 +3,7 @@ package kvstore;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 
 /**
  * This is a generic class that should handle all TCP network connections
@@ -16,7 +17,7 @@ public class SocketServer {
     private int port;
     private ServerSocket server;
     private NetworkHandler handler;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
 
     private static final int TIMEOUT = 100;
 
@@ -64,6 +65,7 @@ public class SocketServer {
      */
     public void connect() throws IOException {
         this.server = new ServerSocket(port);
+        this.port = server.getLocalPort();
     }
 
     /**
@@ -77,7 +79,16 @@ public class SocketServer {
     public void start() throws IOException {
     	int i = 0;
         while (!stopped) {
-            Socket socket = this.server.accept();
+            Socket socket;
+            try {
+                socket = this.server.accept();
+            } catch (SocketException e) {
+                if (stopped) {
+                    // closed by stop()
+                    break;
+                }
+                throw e;
+            }
             handler.handle(socket);
         }
         try {
@@ -90,10 +101,18 @@ public class SocketServer {
     /**
      * Stops the ServerSocket cleanly (does not force an exception to be thrown).
      * A call to stop() will result in the closing of the server no more than
-     * TIMEOUT milliseconds later. That logic should be implemented in start().
+     * TIMEOUT milliseconds later. Closing the ServerSocket here releases the
+     * port at once and wakes start() from a blocked accept().
      */
     public void stop() {
         stopped = true;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+        }
     }
 
 }
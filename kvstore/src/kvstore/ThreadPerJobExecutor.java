@@ -0,0 +1,91 @@
+package kvstore;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every job on a thread of its own, with a cap on how many run at once.
+ * Used to give each client connection its own thread, so that blocking
+ * socket I/O scales with the number of connections without sizing a pool by
+ * hand; the cap bounds the number of threads under a flood of connections.
+ * Once the cap is reached, addJob blocks until a running job finishes.
+ */
+public class ThreadPerJobExecutor implements JobExecutor {
+
+    /* Permits for jobs that may run at once */
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Constructs a ThreadPerJobExecutor.
+     *
+     * @param maxConcurrent most jobs, and so threads, running at once
+     */
+    public ThreadPerJobExecutor(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Starts a new thread for a job, first waiting for a running job to
+     * finish if maxConcurrent are already running.
+     *
+     * @param r job that has to be executed
+     * @throws InterruptedException if interrupted while waiting for a job to
+     *         finish
+     */
+    @Override
+    public void addJob(Runnable r) throws InterruptedException {
+        permits.acquire();
+        start(r);
+    }
+
+    /**
+     * Starts a new thread for a job if fewer than maxConcurrent are running.
+     *
+     * @param r job that has to be executed
+     * @return whether the job was started
+     */
+    @Override
+    public boolean offerJob(Runnable r) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        start(r);
+        return true;
+    }
+
+    /* Runs a job on a new thread, holding a permit taken by the caller */
+    private void start(final Runnable r) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        }, "job-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        try {
+            thread.start();
+        } catch (OutOfMemoryError e) {
+            // the thread could not be created, so the job will never run
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of jobs currently running
+     */
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+}
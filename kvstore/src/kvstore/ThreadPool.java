@@ -1,54 +1,356 @@
 package kvstore;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 
-public class ThreadPool {
+/**
+ * A pool of worker threads fed from a bounded job queue. The pool keeps at
+ * least minThreads workers and starts more, up to maxThreads, when a job
+ * arrives and none is idle; a worker beyond minThreads exits after sitting
+ * idle for keepAliveMillis. When the queue is full a new job either waits
+ * for room or is rejected, according to the RejectionPolicy.
+ */
+public class ThreadPool implements JobExecutor {
+
+    /**
+     * What addJob does when the job queue is full.
+     */
+    public enum RejectionPolicy {
+        /* Wait for room in the queue, slowing down whoever submits jobs */
+        BLOCK,
+        /* Throw RejectedExecutionException straight away */
+        REJECT
+    }
+
+    /* Jobs queued by the single-argument constructor before addJob blocks */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /* How long a worker beyond minThreads may sit idle by default */
+    public static final int DEFAULT_KEEP_ALIVE_MILLISECONDS = 60000;
 
     /* Array of threads in the threadpool */
-    private Thread threads[];
-    private BlockingQueue<Runnable> jobQueue;
+    private final List<WorkerThread> threads = new ArrayList<WorkerThread>();
+    private final BlockingQueue<Runnable> jobQueue;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long keepAliveMillis;
+    private final RejectionPolicy policy;
+
+    /* The following are guarded by the lock on this pool */
+    private int idleCount = 0;
+    /* Jobs queued but not yet taken by a worker that has re-taken the lock */
+    private int unclaimedCount = 0;
+    private int activeCount = 0;
+    private long rejectedCount = 0;
+    private long failedCount = 0;
+    private boolean shutdown = false;
+    private int nextThreadId = 1;
 
 
     /**
-     * Constructs a Threadpool with a certain number of threads.
+     * Constructs a Threadpool with a certain number of threads, whose addJob
+     * blocks once DEFAULT_QUEUE_CAPACITY jobs are waiting.
      *
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) {
-        threads = new Thread[size];
+        this(size, size, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.BLOCK,
+                DEFAULT_KEEP_ALIVE_MILLISECONDS);
+    }
 
-        jobQueue = new LinkedBlockingQueue<Runnable>();
-        
-        for(int i = 0; i < size; i++){
-        	threads[i] = new WorkerThread(this);
-        	threads[i].start();
+    /**
+     * Constructs a ThreadPool that grows and shrinks between two sizes.
+     *
+     * @param minThreads number of threads started at once and always kept
+     * @param maxThreads most threads running at once
+     * @param queueCapacity most jobs waiting for a thread
+     * @param policy what addJob does when queueCapacity jobs are waiting
+     * @param keepAliveMillis how long a thread beyond minThreads may sit idle
+     *        before it exits
+     */
+    public ThreadPool(int minThreads, int maxThreads, int queueCapacity,
+            RejectionPolicy policy, long keepAliveMillis) {
+        this(minThreads, maxThreads, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                policy, keepAliveMillis);
+    }
+
+    /**
+     * Constructs a ThreadPool that takes its jobs from a queue supplied by
+     * the caller, such as a LaneQueue. The queue should be bounded for the
+     * policy to have any effect.
+     *
+     * @param minThreads number of threads started at once and always kept
+     * @param maxThreads most threads running at once
+     * @param jobQueue empty queue to hold jobs waiting for a thread
+     * @param policy what addJob does when jobQueue is full
+     * @param keepAliveMillis how long a thread beyond minThreads may sit idle
+     *        before it exits
+     */
+    public ThreadPool(int minThreads, int maxThreads, BlockingQueue<Runnable> jobQueue,
+            RejectionPolicy policy, long keepAliveMillis) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("invalid pool bounds");
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.policy = policy;
+        this.keepAliveMillis = keepAliveMillis;
+        this.jobQueue = jobQueue;
+
+        synchronized (this) {
+            for (int i = 0; i < minThreads; i++) {
+                startWorker(null);
+            }
         }
-        
     }
 
     /**
      * Add a job to the queue of jobs that have to be executed. As soon as a
      * thread is available, the thread will retrieve a job from this queue if
-     * if one exists and start processing it.
+     * if one exists and start processing it. If no thread is idle and fewer
+     * than maxThreads are running, a new thread is started for the job.
      *
      * @param r job that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * @throws InterruptedException if thread is interrupted while waiting
+     *         for room in the queue
+     * @throws RejectedExecutionException if the pool has been shut down, or
+     *         the queue is full and the policy is REJECT
      */
+    @Override
     public void addJob(Runnable r) throws InterruptedException {
-        jobQueue.put(r);
+        synchronized (this) {
+            if (shutdown) {
+                rejectedCount++;
+                throw new RejectedExecutionException("pool is shut down");
+            }
+            if (startWorkerIfNoneIdle(r)) {
+                return;
+            }
+        }
+        if (policy == RejectionPolicy.BLOCK) {
+            jobQueue.put(r);
+        } else if (!jobQueue.offer(r)) {
+            synchronized (this) {
+                rejectedCount++;
+            }
+            throw new RejectedExecutionException("job queue is full");
+        }
+        jobQueued();
+    }
+
+    /**
+     * Adds a job as addJob does, except that a full queue turns it away
+     * whatever the policy, so a running job can safely queue another.
+     *
+     * @param r job that has to be executed
+     * @return whether the job was accepted
+     */
+    @Override
+    public boolean offerJob(Runnable r) {
+        synchronized (this) {
+            if (shutdown) {
+                rejectedCount++;
+                return false;
+            }
+            if (startWorkerIfNoneIdle(r)) {
+                return true;
+            }
+        }
+        if (!jobQueue.offer(r)) {
+            synchronized (this) {
+                rejectedCount++;
+            }
+            return false;
+        }
+        jobQueued();
+        return true;
+    }
+
+    /*
+     * Called with the lock held. A worker counts as idle from before it
+     * waits on the queue until it re-takes the lock, even if it has already
+     * taken a job by then; that job still counts as unclaimed, so idle
+     * workers beyond unclaimedCount are the ones free to take a new job.
+     */
+    private boolean startWorkerIfNoneIdle(Runnable r) {
+        if (idleCount <= unclaimedCount && threads.size() < maxThreads) {
+            startWorker(r);
+            return true;
+        }
+        return false;
+    }
+
+    /* Counts a job just queued, starting a worker if none is free to take it */
+    private synchronized void jobQueued() {
+        unclaimedCount++;
+        if (!shutdown && unclaimedCount > idleCount && threads.size() < maxThreads) {
+            startWorker(null);
+        }
+    }
+
+    /**
+     * Stops accepting jobs. Jobs already queued are still run, after which
+     * the threads exit.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        // wake the idle threads so they notice
+        for (WorkerThread thread : threads) {
+            if (thread.idle) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for every thread to exit after shutdown.
+     *
+     * @param timeoutMillis longest time to wait
+     * @return whether every thread has exited
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            WorkerThread thread;
+            synchronized (this) {
+                if (threads.isEmpty()) {
+                    return true;
+                }
+                thread = threads.get(0);
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            thread.join(wait);
+        }
+    }
+
+    /**
+     * @return number of jobs waiting for a thread
+     */
+    public int getQueueDepth() {
+        return jobQueue.size();
+    }
+
+    /**
+     * @return number of threads currently running a job
+     */
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return number of threads in the pool, busy or idle
+     */
+    public synchronized int getThreadCount() {
+        return threads.size();
+    }
+
+    /**
+     * @return number of jobs turned away by addJob
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
     }
 
     /**
-     * Block until a job is present in the queue and retrieve the job
-     * @return A runnable task that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * @return number of jobs that ended by throwing an exception
      */
-    private Runnable getJob() throws InterruptedException {
-        return jobQueue.take();
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /* Called with the lock held */
+    private void startWorker(Runnable firstJob) {
+        WorkerThread thread = new WorkerThread(this, firstJob);
+        thread.setName("worker-" + nextThreadId++);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Block until a job is present in the queue and retrieve the job. A thread
+     * beyond minThreads gives up after keepAliveMillis, as does every thread
+     * once the pool is shut down and the queue is empty.
+     *
+     * @return A runnable task that has to be executed, or null if the calling
+     *         thread should exit
+     */
+    private Runnable getJob(WorkerThread thread) {
+        while (true) {
+            boolean surplus;
+            synchronized (this) {
+                if (thread.idle) {
+                    // started without a job, already counted as idle
+                    thread.idle = false;
+                    idleCount--;
+                }
+                if (shutdown) {
+                    // drain without blocking, since nothing will wake us
+                    Runnable r = jobQueue.poll();
+                    if (r == null) {
+                        return exit(thread);
+                    }
+                    unclaimedCount--;
+                    activeCount++;
+                    return r;
+                }
+                surplus = threads.size() > minThreads;
+                thread.idle = true;
+                idleCount++;
+            }
+            Runnable r = null;
+            boolean timedOut = false;
+            try {
+                if (surplus) {
+                    r = jobQueue.poll(keepAliveMillis, TimeUnit.MILLISECONDS);
+                    timedOut = (r == null);
+                } else {
+                    r = jobQueue.take();
+                }
+            } catch (InterruptedException e) {
+                // woken by shutdown
+            }
+            synchronized (this) {
+                thread.idle = false;
+                idleCount--;
+                // clear an interrupt from shutdown that raced with the job
+                Thread.interrupted();
+                if (r != null) {
+                    unclaimedCount--;
+                    activeCount++;
+                    return r;
+                }
+                if (timedOut && threads.size() > minThreads && jobQueue.isEmpty()) {
+                    return exit(thread);
+                }
+            }
+        }
+    }
+
+    /* Called with the lock held */
+    private Runnable exit(WorkerThread thread) {
+        threads.remove(thread);
+        return null;
+    }
+
+    /* Forgets a thread killed by an Error; a no-op if it already exited */
+    private synchronized void threadDied(WorkerThread thread) {
+        threads.remove(thread);
+    }
+
+    private synchronized void jobFinished(boolean failed) {
+        activeCount--;
+        if (failed) {
+            failedCount++;
+        }
     }
 
     /**
@@ -57,30 +359,56 @@ public class ThreadPool {
     private class WorkerThread extends Thread {
 
         private ThreadPool threadPool;
+        private Runnable firstJob;
+
+        /* Whether waiting for a job; guarded by the lock on the pool */
+        boolean idle = false;
 
         /**
          * Constructs a thread for this particular ThreadPool.
          *
          * @param pool the ThreadPool containing this thread
+         * @param firstJob job to run before taking any from the queue, or null
          */
-        public WorkerThread(ThreadPool pool) {
+        public WorkerThread(ThreadPool pool, Runnable firstJob) {
             threadPool = pool;
+            this.firstJob = firstJob;
+            if (firstJob != null) {
+                threadPool.activeCount++;
+            } else {
+                // about to take a job, so counted as idle from the start
+                idle = true;
+                threadPool.idleCount++;
+            }
         }
 
         /**
-         * Scan for and execute tasks.
+         * Scan for and execute tasks until the pool no longer needs this
+         * thread. A job that throws is reported to the uncaught exception
+         * handler without taking the thread down.
          */
         @Override
         public void run() {
-            while(true){
-            	try{
-            		Runnable r = threadPool.getJob();
-            		if(r != null)
-            			r.run();
-            	}
-            	catch(Exception e){
-            		//ignore
-            	}
+            Runnable r = firstJob;
+            firstJob = null;
+            try {
+                if (r == null) {
+                    r = threadPool.getJob(this);
+                }
+                while (r != null) {
+                    boolean failed = true;
+                    try {
+                        r.run();
+                        failed = false;
+                    } catch (RuntimeException e) {
+                        getUncaughtExceptionHandler().uncaughtException(this, e);
+                    } finally {
+                        threadPool.jobFinished(failed);
+                    }
+                    r = threadPool.getJob(this);
+                }
+            } finally {
+                threadPool.threadDied(this);
             }
         }
     }
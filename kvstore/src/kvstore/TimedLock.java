@@ -0,0 +1,90 @@
+package kvstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Wraps the lock of a cache set to count how often, and for how long,
+ * callers had to wait for it. An uncontended acquisition succeeds on the
+ * first try and costs no more than before. The first try is a zero-timeout
+ * tryLock, which, unlike tryLock(), waits its turn behind queued threads:
+ * a reader never barges past a writer waiting on the same set.
+ */
+class TimedLock implements Lock {
+
+    private final Lock lock;
+    private final CacheStats stats;
+    private final int setId;
+
+    TimedLock(Lock lock, CacheStats stats, int setId) {
+        this.lock = lock;
+        this.stats = stats;
+        this.setId = setId;
+    }
+
+    @Override
+    public void lock() {
+        if (tryLockInTurn()) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        waited(start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        waited(start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean locked = lock.tryLock(time, unit);
+        waited(start);
+        return locked;
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return lock.newCondition();
+    }
+
+    /**
+     * Takes the lock only if it is free and no thread is queued ahead. An
+     * interrupt is kept for the caller; lock() itself ignores it.
+     */
+    private boolean tryLockInTurn() {
+        try {
+            return lock.tryLock(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void waited(long start) {
+        stats.add(setId, CacheStats.Counter.CONTENDED_LOCKS, 1);
+        stats.add(setId, CacheStats.Counter.LOCK_WAIT_NANOS, System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,221 @@
+package kvstore;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * A small streaming XML writer used to serialize KVMessages, KVStores and
+ * KVCaches without building a DOM or going through a Transformer. Output is
+ * written straight to the underlying Writer as each call is made. Child
+ * elements are placed on their own lines and indented four spaces per level;
+ * elements holding only text are written on a single line.
+ */
+public class XMLWriter {
+
+    private static final String INDENT = "    ";
+
+    private final Writer out;
+
+    /* Names of the currently open elements, outermost first */
+    private final ArrayList<String> openElements = new ArrayList<String>();
+
+    /* Whether the innermost open element has had a child element written */
+    private boolean hasChildren = false;
+
+    /* Whether the start tag of the innermost element still needs its '>' */
+    private boolean startTagOpen = false;
+
+    /**
+     * Constructs an XMLWriter that writes to a Writer.
+     *
+     * @param out Writer to send XML to. It is not buffered by this class.
+     */
+    public XMLWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the XML declaration. Must be called before anything else.
+     *
+     * @param standalone value of the standalone pseudo-attribute
+     * @throws IOException if the underlying Writer fails
+     */
+    public void startDocument(boolean standalone) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"");
+        out.write(standalone ? "yes" : "no");
+        out.write("\"?>\n");
+    }
+
+    /**
+     * Finishes the document, closing any elements still open, and flushes
+     * the underlying Writer.
+     *
+     * @throws IOException if the underlying Writer fails
+     */
+    public void endDocument() throws IOException {
+        while (!openElements.isEmpty()) {
+            endElement();
+        }
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Opens a new element inside the current one.
+     *
+     * @param name element name, written as is
+     * @throws IOException if the underlying Writer fails
+     */
+    public void startElement(String name) throws IOException {
+        closeStartTag();
+        if (!openElements.isEmpty()) {
+            hasChildren = true;
+            newLine(openElements.size());
+        }
+        out.write('<');
+        out.write(name);
+        openElements.add(name);
+        hasChildren = false;
+        startTagOpen = true;
+    }
+
+    /**
+     * Adds an attribute to the element that was just opened. Must be called
+     * before any content is written to that element.
+     *
+     * @param name attribute name, written as is
+     * @param value attribute value, escaped as needed
+     * @throws IOException if the underlying Writer fails
+     */
+    public void attribute(String name, String value) throws IOException {
+        if (!startTagOpen) {
+            throw new IllegalStateException("attribute outside of start tag");
+        }
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        escape(value, true);
+        out.write('"');
+    }
+
+    /**
+     * Writes character data inside the current element.
+     *
+     * @param text content, escaped as needed
+     * @throws IOException if the underlying Writer fails
+     */
+    public void text(String text) throws IOException {
+        closeStartTag();
+        escape(text, false);
+    }
+
+    /**
+     * Closes the current element.
+     *
+     * @throws IOException if the underlying Writer fails
+     */
+    public void endElement() throws IOException {
+        String name = openElements.remove(openElements.size() - 1);
+        if (startTagOpen) {
+            out.write("/>");
+            startTagOpen = false;
+        } else {
+            if (hasChildren) {
+                newLine(openElements.size());
+            }
+            out.write("</");
+            out.write(name);
+            out.write('>');
+        }
+        // the parent of the element just closed has at least one child
+        hasChildren = true;
+    }
+
+    /**
+     * Writes an element that contains only text.
+     *
+     * @param name element name, written as is
+     * @param text content, escaped as needed
+     * @throws IOException if the underlying Writer fails
+     */
+    public void textElement(String name, String text) throws IOException {
+        startElement(name);
+        text(text);
+        endElement();
+    }
+
+    /**
+     * Checks whether a string can be written as XML 1.0 text. Control
+     * characters other than tab, line feed and carriage return, and the
+     * non-characters U+FFFE and U+FFFF, are not allowed in a document even
+     * as character references.
+     *
+     * @param s text to check
+     * @return whether every character of s is allowed
+     */
+    public static boolean isValidText(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!isValidChar(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidChar(char c) {
+        if (c < ' ') {
+            return c == '\t' || c == '\n' || c == '\r';
+        }
+        return c != '\uFFFE' && c != '\uFFFF';
+    }
+
+    private void closeStartTag() throws IOException {
+        if (startTagOpen) {
+            out.write('>');
+            startTagOpen = false;
+        }
+    }
+
+    private void newLine(int depth) throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write(INDENT);
+        }
+    }
+
+    /**
+     * Writes a string with the characters that are special in XML replaced by
+     * references. Runs of ordinary characters are written in one call.
+     *
+     * @throws IOException if s holds a character XML does not allow
+     */
+    private void escape(String s, boolean inAttribute) throws IOException {
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String replacement;
+            if (!isValidChar(c)) {
+                throw new IOException("character " + (int) c + " is not allowed in XML");
+            } else if (c == '<') {
+                replacement = "&lt;";
+            } else if (c == '>') {
+                replacement = "&gt;";
+            } else if (c == '&') {
+                replacement = "&amp;";
+            } else if (c == '"' && inAttribute) {
+                replacement = "&quot;";
+            } else if (c == '\r' || (c < ' ' && (inAttribute || c != '\n'))) {
+                // keep whitespace that a parser would otherwise normalize
+                replacement = "&#" + (int) c + ";";
+            } else {
+                continue;
+            }
+            out.write(s, start, i - start);
+            out.write(replacement);
+            start = i + 1;
+        }
+        out.write(s, start, length - start);
+    }
+}
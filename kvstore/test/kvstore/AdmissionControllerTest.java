@@ -0,0 +1,90 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class AdmissionControllerTest {
+
+    private static KVMessage queuedAt(long enqueueTime, int timeout) {
+        KVMessage request = new KVMessage(GET_REQ);
+        request.setKey("key");
+        request.setTimeout(timeout);
+        request.setEnqueueTime(enqueueTime);
+        return request;
+    }
+
+    @Test
+    public void dropsRequestsPastTheirDeadline() {
+        AdmissionController admission = new AdmissionController(1000);
+        long now = 100000;
+        assertNull(admission.admit(queuedAt(now - 10, 0), now));
+        KVMessage expired = admission.admit(queuedAt(now - TIMEOUT_MILLISECONDS, 0), now);
+        assertEquals(ERROR_DEADLINE_EXCEEDED, expired.getMessage());
+        // the client's own timeout takes precedence
+        expired = admission.admit(queuedAt(now - 50, 50), now);
+        assertEquals(ERROR_DEADLINE_EXCEEDED, expired.getMessage());
+        assertNull(admission.admit(queuedAt(now - 50, 5000), now));
+        assertEquals(2, admission.getExpiredCount());
+        assertEquals(2, admission.getAdmittedCount());
+    }
+
+    @Test
+    public void admitsRequestsThatWereNeverQueued() {
+        AdmissionController admission = new AdmissionController(0);
+        assertNull(admission.admit(queuedAt(0, 1), System.currentTimeMillis()));
+    }
+
+    @Test
+    public void shedsSlowRequestsOnlyWhileDelayIsHigh() {
+        AdmissionController admission = new AdmissionController(100);
+        long now = 100000;
+        // long queueing delays push the 99th percentile over the threshold
+        for (int i = 0; i < 63; i++) {
+            assertNull(admission.admit(queuedAt(now - 500, 0), now));
+        }
+        assertEquals(0, admission.getQueueDelayP99());
+        // the percentile is recomputed as this one is recorded, so it is shed
+        assertNotNull(admission.admit(queuedAt(now - 500, 0), now));
+        assertEquals(500, admission.getQueueDelayP99());
+        KVMessage shed = admission.admit(queuedAt(now - 200, 0), now);
+        assertEquals(ERROR_SERVER_BUSY, shed.getMessage());
+        // requests that did not wait long still get through
+        assertNull(admission.admit(queuedAt(now - 10, 0), now));
+        assertEquals(2, admission.getShedCount());
+
+        // once recent delays are short again, nothing is shed
+        for (int i = 0; i < 1024; i++) {
+            admission.admit(queuedAt(now, 0), now);
+        }
+        assertEquals(0, admission.getQueueDelayP99());
+        assertNull(admission.admit(queuedAt(now - 200, 0), now));
+    }
+
+    @Test
+    public void countsEveryRequestFromConcurrentWorkers() throws InterruptedException {
+        final AdmissionController admission = new AdmissionController(100);
+        final long now = 100000;
+        Thread[] workers = new Thread[8];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        admission.admit(queuedAt(now - (i % 3000), 0), now);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(40000, admission.getAdmittedCount()
+                + admission.getExpiredCount() + admission.getShedCount());
+        assertTrue(admission.getExpiredCount() > 0);
+        assertTrue(admission.getQueueDelayP99() > 100);
+    }
+
+}
@@ -0,0 +1,139 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.*;
+
+public class CacheStatsTest {
+
+    @Test
+    public void countsPerSetAndInTotal() {
+        CacheStats stats = new CacheStats(3);
+        stats.add(0, CacheStats.Counter.HITS, 2);
+        stats.add(2, CacheStats.Counter.HITS, 5);
+        stats.add(2, CacheStats.Counter.MISSES, 1);
+        assertEquals(2, stats.get(0, CacheStats.Counter.HITS));
+        assertEquals(0, stats.get(1, CacheStats.Counter.HITS));
+        assertEquals(7, stats.getTotal(CacheStats.Counter.HITS));
+        assertEquals(6, stats.getLookups(2));
+        assertTrue(stats.describe(2).startsWith("hits=5 misses=1 insertions=0"));
+        assertTrue(stats.describeTotal().startsWith("hits=7 misses=1"));
+    }
+
+    @Test
+    public void concurrentAddsToOneSetAreAllCounted() throws InterruptedException {
+        final CacheStats stats = new CacheStats(2);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        stats.add(1, CacheStats.Counter.HITS, 1);
+                        stats.add(1, CacheStats.Counter.ENTRIES, (i % 2 == 0) ? 1 : -1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, stats.get(1, CacheStats.Counter.HITS));
+        assertEquals(0, stats.get(1, CacheStats.Counter.ENTRIES));
+        assertEquals(0, stats.getLookups(0));
+    }
+
+    @Test
+    public void concatNumbersSetsInTurn() {
+        CacheStats first = new CacheStats(2);
+        CacheStats second = new CacheStats(3);
+        first.add(1, CacheStats.Counter.EVICTIONS, 4);
+        second.add(0, CacheStats.Counter.EVICTIONS, 9);
+        CacheStats combined = CacheStats.concat(Arrays.asList(first, second));
+        assertEquals(5, combined.getNumSets());
+        assertEquals(4, combined.get(1, CacheStats.Counter.EVICTIONS));
+        assertEquals(9, combined.get(2, CacheStats.Counter.EVICTIONS));
+        assertEquals(13, combined.getTotal(CacheStats.Counter.EVICTIONS));
+    }
+
+    @Test
+    public void cacheCountsHitsMissesAndEvictions() {
+        KVCache cache = new KVCache(1, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("c"));
+        cache.put("c", "3");
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.get(0, CacheStats.Counter.HITS));
+        assertEquals(1, stats.get(0, CacheStats.Counter.MISSES));
+        assertEquals(3, stats.get(0, CacheStats.Counter.INSERTIONS));
+        assertEquals(1, stats.get(0, CacheStats.Counter.EVICTIONS));
+        // "a" was referenced, so it was passed over once before "b" went
+        assertEquals(1, stats.get(0, CacheStats.Counter.SECOND_CHANCES));
+    }
+
+    @Test
+    public void tracksEntriesAndSkew() {
+        KVCache cache = new KVCache(4, 4);
+        for (int i = 0; i < 8; i++) {
+            cache.put("key" + i, "v");
+        }
+        cache.del("key0");
+        CacheStats stats = cache.getStats();
+        assertEquals(7, stats.getTotal(CacheStats.Counter.ENTRIES));
+        assertEquals(0, stats.getLookupSkew(), 0);
+        for (int i = 0; i < 100; i++) {
+            cache.get("key1");
+        }
+        assertEquals(4, stats.getLookupSkew(), 0);
+        assertEquals(1, stats.getBusiestShare(1), 0);
+        cache.get("key2");
+        assertTrue(stats.getBusiestShare(1) < 1);
+        assertTrue(stats.getOccupancySkew() >= 1);
+        assertTrue(stats.describeTotal().contains(" entries=7 lookupSkew="));
+    }
+
+    @Test
+    public void countsLockWaits() throws InterruptedException {
+        KVCache cache = new KVCache(1, 2);
+        final Lock lock = cache.getLock("key");
+        final CountDownLatch locked = new CountDownLatch(1);
+        lock.lock();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                locked.countDown();
+                lock.lock();
+                lock.unlock();
+            }
+        };
+        waiter.start();
+        locked.await();
+        Thread.sleep(50);
+        lock.unlock();
+        waiter.join();
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.get(0, CacheStats.Counter.CONTENDED_LOCKS));
+        assertTrue(stats.get(0, CacheStats.Counter.LOCK_WAIT_NANOS) > 0);
+    }
+
+    @Test
+    public void statsResponseKeepsBusiestSets() throws KVException {
+        CacheStats stats = new CacheStats(MAX_BATCH_ENTRIES + 10);
+        stats.add(MAX_BATCH_ENTRIES + 5, CacheStats.Counter.HITS, 3);
+        KVMessage response = ServerClientHandler.statsResponse(stats);
+        assertEquals(MAX_BATCH_ENTRIES, response.getEntries().size());
+        assertEquals("total", response.getEntries().get(0).getKey());
+        assertEquals("set " + (MAX_BATCH_ENTRIES + 5),
+                response.getEntries().get(MAX_BATCH_ENTRIES - 1).getKey());
+        response.toXML();
+    }
+
+}
@@ -0,0 +1,186 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class ConnectionPoolTest {
+
+    ServerSocket listener;
+    List<Socket> accepted = new ArrayList<Socket>();
+
+    @Before
+    public void startListener() throws IOException {
+        listener = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket s = listener.accept();
+                        synchronized (accepted) {
+                            accepted.add(s);
+                        }
+                    }
+                } catch (IOException e) {
+                    // listener closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    ServerSocket frameServer;
+
+    /**
+     * Starts a server that answers each binary frame with success, except
+     * that request number badRequest gets an invalid byte; with badRequest
+     * -1, every connection is closed after its first response instead.
+     *
+     * @return count of requests the server has read
+     */
+    private AtomicInteger serveFrames(final int badRequest) throws IOException {
+        frameServer = new ServerSocket(0);
+        final AtomicInteger requests = new AtomicInteger();
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket s = frameServer.accept();
+                        InputStream in = new BufferedInputStream(s.getInputStream());
+                        while (KVMessage.receiveFrame(in) != null) {
+                            int n = requests.incrementAndGet();
+                            if (n == badRequest) {
+                                s.getOutputStream().write(0);
+                            } else {
+                                new KVMessage(KVConstants.RESP, KVConstants.SUCCESS)
+                                        .sendFrame(s.getOutputStream());
+                            }
+                            if (badRequest < 0) {
+                                break;
+                            }
+                        }
+                        s.close();
+                    }
+                } catch (Exception e) {
+                    // server closed
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+        return requests;
+    }
+
+    @After
+    public void stopListener() throws IOException {
+        listener.close();
+        if (frameServer != null) {
+            frameServer.close();
+        }
+        synchronized (accepted) {
+            for (Socket s : accepted) {
+                s.close();
+            }
+        }
+    }
+
+    @Test
+    public void reusesReleasedConnections() throws KVException {
+        ConnectionPool pool = new ConnectionPool("localhost",
+                listener.getLocalPort(), 2, 60000);
+        ConnectionPool.Connection first = pool.borrow();
+        assertFalse(first.isReused());
+        pool.release(first);
+        ConnectionPool.Connection second = pool.borrow();
+        assertSame(first, second);
+        assertTrue(second.isReused());
+        pool.release(second);
+        assertEquals(1, pool.getOpenCount());
+        pool.close();
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void boundsOpenConnections() throws KVException {
+        ConnectionPool pool = new ConnectionPool("localhost",
+                listener.getLocalPort(), 1, 60000);
+        ConnectionPool.Connection conn = pool.borrow();
+        try {
+            pool.borrow();
+            fail("borrow beyond maxSize should time out");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_COULD_NOT_CONNECT,
+                    e.getKVMessage().getMessage());
+        }
+        pool.discard(conn);
+        pool.release(pool.borrow());
+        assertEquals(1, pool.getOpenCount());
+        pool.close();
+    }
+
+    @Test
+    public void closesIdleConnectionsWithoutBeingUsed() throws Exception {
+        ConnectionPool pool = new ConnectionPool("localhost",
+                listener.getLocalPort(), 2, 50);
+        pool.release(pool.borrow());
+        assertEquals(1, pool.getIdleCount());
+        Thread.sleep(200);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void resendsWhenReusedConnectionWasClosed() throws Exception {
+        // the server answers one request per connection, then hangs up
+        AtomicInteger requests = serveFrames(-1);
+        KVClient client = new KVClient("localhost", frameServer.getLocalPort());
+        client.setBinaryProtocol(true);
+        client.put("k1", "v1");
+        client.put("k2", "v2");
+        assertEquals(2, requests.get());
+        client.close();
+    }
+
+    @Test
+    public void doesNotResendAfterABadResponse() throws Exception {
+        // the second request is read, then answered with garbage
+        AtomicInteger requests = serveFrames(2);
+        KVClient client = new KVClient("localhost", frameServer.getLocalPort());
+        client.setBinaryProtocol(true);
+        client.put("k1", "v1");
+        try {
+            client.del("k1");
+            fail("bad response should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+        assertEquals(2, requests.get());
+        client.close();
+    }
+
+    @Test
+    public void evictsIdleConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool("localhost",
+                listener.getLocalPort(), 2, 50);
+        ConnectionPool.Connection conn = pool.borrow();
+        pool.release(conn);
+        Thread.sleep(100);
+        ConnectionPool.Connection fresh = pool.borrow();
+        assertNotSame(conn, fresh);
+        assertEquals(1, pool.getOpenCount());
+        pool.close();
+    }
+
+}
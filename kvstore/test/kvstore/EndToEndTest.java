@@ -1,6 +1,17 @@
 package kvstore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -63,4 +74,178 @@ public class EndToEndTest extends EndToEndTemplate {
 		}
     }
     
+    @Test
+    public void testBinaryProtocol() throws KVException {
+        client.setBinaryProtocol(true);
+        client.put("fuzzy", "wuzzy");
+        assertEquals("wuzzy", client.get("fuzzy"));
+        // a client speaking XML sees the same data
+        assertEquals("wuzzy", another_client.get("fuzzy"));
+        client.del("fuzzy");
+        try {
+            client.get("fuzzy");
+            fail("get of deleted key should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testIdleBinaryConnectionsFreeWorkers() throws Exception {
+        // as many quiet persistent connections as the server has workers
+        KVClient third_client = new KVClient(
+                InetAddress.getLocalHost().getHostAddress(), 8080);
+        client.setBinaryProtocol(true);
+        third_client.setBinaryProtocol(true);
+        client.put("idle1", "v1");
+        third_client.put("idle2", "v2");
+        another_client.put("xml", "v3");
+        assertEquals("v3", another_client.get("xml"));
+        client.close();
+        third_client.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testIdleBinaryConnectionsDoNotSlowRequests() throws Exception {
+        // many more quiet persistent connections than the server has workers
+        String host = InetAddress.getLocalHost().getHostAddress();
+        List<KVClient> clients = new ArrayList<KVClient>();
+        try {
+            for (int i = 0; i < 32; i++) {
+                KVClient binary = new KVClient(host, 8080);
+                binary.setBinaryProtocol(true);
+                binary.put("idle" + i, "v" + i);
+                clients.add(binary);
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                long start = System.nanoTime();
+                assertEquals("v" + i, clients.get(i).get("idle" + i));
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("request took " + millis + " ms", millis < 250);
+            }
+        } finally {
+            for (KVClient binary : clients) {
+                binary.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws KVException {
+        client.setBinaryProtocol(true);
+        List<KVMessage> requests = new ArrayList<KVMessage>();
+        for (int i = 0; i < 20; i++) {
+            KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+            put.setKey("key" + i);
+            put.setValue("val" + i);
+            requests.add(put);
+            KVMessage get = new KVMessage(KVConstants.GET_REQ);
+            get.setKey("key" + i);
+            requests.add(get);
+        }
+        List<KVMessage> responses = client.pipeline(requests);
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(KVConstants.SUCCESS, responses.get(2 * i).getMessage());
+            assertEquals("val" + i, responses.get(2 * i + 1).getValue());
+        }
+        // the same connection keeps serving requests, and survives a close
+        assertEquals("val3", client.get("key3"));
+        client.close();
+        assertEquals("val4", client.get("key4"));
+        client.close();
+    }
+
+    @Test
+    public void testBatchOperations() throws KVException {
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 50; i++) {
+            pairs.put("key" + i, "val" + i);
+        }
+        client.putAll(pairs);
+        assertEquals("val7", another_client.get("key7"));
+
+        another_client.setBinaryProtocol(true);
+        List<String> keys = new ArrayList<String>(pairs.keySet());
+        keys.add("missing");
+        Map<String, String> values = another_client.getAll(keys);
+        assertEquals(pairs, values);
+
+        try {
+            client.delAll(keys);
+            fail("delAll with a missing key should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertTrue(client.getAll(keys).isEmpty());
+        another_client.close();
+    }
+
+    @Test
+    public void testAsyncRequests() throws Exception {
+        List<Future<Void>> puts = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 200; i++) {
+            puts.add(client.putAsync("key" + i, "val" + i));
+        }
+        List<Future<String>> gets = new ArrayList<Future<String>>();
+        for (int i = 0; i < 200; i++) {
+            gets.add(client.getAsync("key" + i));
+        }
+        for (Future<Void> put : puts) {
+            put.get(5, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("val" + i, gets.get(i).get(5, TimeUnit.SECONDS));
+        }
+
+        client.delAsync("key0").get(5, TimeUnit.SECONDS);
+        try {
+            client.getAsync("key0").get(5, TimeUnit.SECONDS);
+            fail("get of deleted key should error");
+        } catch (ExecutionException e) {
+            KVException kve = (KVException) e.getCause();
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, kve.getKVMessage().getMessage());
+        }
+        client.close();
+        assertEquals("val1", client.getAsync("key1").get(5, TimeUnit.SECONDS));
+        client.close();
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        client.setNearCache(new KVCache(10, 10, 200));
+        client.put("near", "v1");
+        another_client.put("near", "v2");
+        // served from the near cache until the entry expires
+        assertEquals("v1", client.get("near"));
+        Thread.sleep(300);
+        assertEquals("v2", client.get("near"));
+
+        client.del("near");
+        try {
+            client.get("near");
+            fail("get of deleted key should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        client.putAsync("near", "v3").get(5, TimeUnit.SECONDS);
+        assertEquals("v3", client.getAsync("near").get(5, TimeUnit.SECONDS));
+        client.close();
+    }
+
+    @Test(timeout = 15000)
+    public void testStats() throws KVException {
+        client.put("stats", "v1");
+        client.get("stats");
+        try {
+            client.get("missing");
+            fail("get of missing key should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        Map<String, String> stats = client.stats();
+        assertTrue(stats.get("total").startsWith("hits=1 misses="));
+        assertTrue(stats.containsKey("set 0"));
+    }
+
 }
@@ -0,0 +1,112 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays one access log against a KVCache with each built-in eviction
+ * policy, with and without a TinyLFU admission filter, and reports hit
+ * ratio and throughput. Every access is a get, and a
+ * miss is followed by a put, as KVServer does when it fills the cache from
+ * the store.
+ *
+ * The log has one access per line, the key being the first word. With no
+ * log, a synthetic one is generated: Zipf-distributed reads over a key space
+ * several times the cache size, interrupted by one-off scans.
+ *
+ * Run with: java kvstore.EvictionBenchmark [numSets] [maxElemsPerSet] [log]
+ */
+public class EvictionBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int numSets = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        int maxElemsPerSet = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        String[] trace = (args.length > 2) ? read(args[2])
+                : synthetic(numSets * maxElemsPerSet * 8, 2000000);
+        System.out.println(String.format("%-16s %10s %12s", "policy", "hit ratio", "accesses/s"));
+        for (boolean admission : new boolean[] { false, true }) {
+            for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+                // once to warm up, once to measure
+                replay(type, admission, numSets, maxElemsPerSet, trace);
+                long start = System.nanoTime();
+                double hitRatio = replay(type, admission, numSets, maxElemsPerSet, trace);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format("%-16s %10.4f %12.0f",
+                        type + (admission ? "+TinyLFU" : ""), hitRatio,
+                        trace.length / seconds));
+            }
+        }
+    }
+
+    private static double replay(EvictionPolicy.Type type, boolean admission,
+            int numSets, int maxElemsPerSet, String[] trace) {
+        KVCache cache = new KVCache(numSets, maxElemsPerSet, 0, type);
+        if (admission) {
+            cache.setAdmissionFilter(new FrequencySketch(numSets * maxElemsPerSet));
+        }
+        long hits = 0;
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    private static String[] read(String path) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    keys.add(line.split("\\s+")[0]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    private static String[] synthetic(int keySpace, int length) {
+        // cumulative Zipf(0.9) weights over the key space
+        double[] cumulative = new double[keySpace];
+        double total = 0;
+        for (int i = 0; i < keySpace; i++) {
+            total += 1 / Math.pow(i + 1, 0.9);
+            cumulative[i] = total;
+        }
+        Random random = new Random(1);
+        String[] trace = new String[length];
+        int scans = 0;
+        for (int i = 0; i < length; i++) {
+            if (i % 10000 < 1000) {
+                // one-off scan keys, never seen again
+                trace[i] = "scan:" + scans++;
+                continue;
+            }
+            double r = random.nextDouble() * total;
+            int lo = 0;
+            int hi = keySpace - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] < r) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            trace[i] = "user:" + lo;
+        }
+        return trace;
+    }
+
+}
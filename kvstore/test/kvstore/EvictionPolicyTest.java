@@ -0,0 +1,132 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+
+public class EvictionPolicyTest {
+
+    /**
+     * Whatever the policy, the cache must never return a stale value or hold
+     * more than a set's worth of keys.
+     */
+    @Test
+    public void everyPolicyBehavesAsABoundedMap() {
+        for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            KVCache cache = new KVCache(4, 5, 0, type);
+            Map<String, String> truth = new HashMap<String, String>();
+            Random random = new Random(42);
+            for (int i = 0; i < 20000; i++) {
+                String key = "k" + random.nextInt(60);
+                int op = random.nextInt(10);
+                if (op < 3) {
+                    cache.put(key, "v" + i);
+                    truth.put(key, "v" + i);
+                } else if (op < 4) {
+                    cache.del(key);
+                    truth.remove(key);
+                } else {
+                    String value = cache.get(key);
+                    if (value != null) {
+                        assertEquals(type.toString(), truth.get(key), value);
+                    }
+                }
+            }
+            int held = 0;
+            for (String key : truth.keySet()) {
+                if (cache.get(key) != null) {
+                    held++;
+                }
+            }
+            assertTrue(type.toString(), held <= 4 * 5);
+            assertTrue(type.toString(), held > 0);
+        }
+    }
+
+    @Test
+    public void lruEvictsLeastRecentlyUsed() {
+        KVCache cache = new KVCache(1, 3, 0, EvictionPolicy.Type.LRU);
+        cache.put("a", "a");
+        cache.put("b", "b");
+        cache.put("c", "c");
+        cache.get("a");
+        cache.put("d", "d");
+        assertNull(cache.get("b"));
+        cache.get("c");
+        cache.put("e", "e");
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertNotNull(cache.get("e"));
+    }
+
+    @Test
+    public void s3fifoKeepsHotKeysThroughAScan() {
+        KVCache cache = new KVCache(1, 10, 0, EvictionPolicy.Type.S3_FIFO);
+        for (int i = 0; i < 5; i++) {
+            cache.put("hot" + i, "v");
+            cache.get("hot" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            cache.put("scan" + i, "v");
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull("hot" + i, cache.get("hot" + i));
+        }
+    }
+
+    @Test
+    public void s3fifoPromotesReturningKeys() {
+        KVCache cache = new KVCache(1, 10, 0, EvictionPolicy.Type.S3_FIFO);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v");
+        }
+        // k0 is dropped from the small queue into the ghost list
+        cache.put("k10", "v");
+        assertNull(cache.get("k0"));
+        cache.put("k0", "v");
+        for (int i = 0; i < 5; i++) {
+            cache.put("scan" + i, "v");
+        }
+        assertNotNull(cache.get("k0"));
+    }
+
+    @Test
+    public void arcKeepsFrequentKeysThroughAScan() {
+        KVCache cache = new KVCache(1, 10, 0, EvictionPolicy.Type.ARC);
+        for (int i = 0; i < 5; i++) {
+            cache.put("hot" + i, "v");
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5; i++) {
+                cache.get("hot" + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                cache.put("scan" + round + "-" + i, "v");
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull("hot" + i, cache.get("hot" + i));
+        }
+    }
+
+    @Test
+    public void clockIsTheDefault() {
+        KVCache plain = new KVCache(1, 3);
+        KVCache clock = new KVCache(1, 3, 0, EvictionPolicy.Type.CLOCK);
+        for (KVCache cache : new KVCache[] { plain, clock }) {
+            cache.put("k1", "k1");
+            cache.put("k2", "k2");
+            cache.put("k3", "k3");
+            cache.get("k1");
+            cache.put("k4", "k4");
+            assertNull(cache.get("k2"));
+        }
+        assertEquals(clock.toXML(), plain.toXML());
+    }
+
+}
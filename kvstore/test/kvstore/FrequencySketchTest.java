@@ -0,0 +1,103 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void estimatesCounts() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("hot".hashCode());
+        }
+        sketch.increment("warm".hashCode());
+        assertEquals(5, sketch.frequency("hot".hashCode()));
+        assertEquals(1, sketch.frequency("warm".hashCode()));
+        assertEquals(0, sketch.frequency("cold".hashCode()));
+    }
+
+    @Test
+    public void countsSaturate() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(15, sketch.frequency(42));
+    }
+
+    @Test
+    public void countsAgeByHalving() {
+        FrequencySketch sketch = new FrequencySketch(10);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(42);
+        }
+        // 100 lookups in all fills the sample and halves every counter
+        for (int i = 0; i < 92; i++) {
+            sketch.increment(1000 + i);
+        }
+        assertEquals(4, sketch.frequency(42));
+    }
+
+    @Test
+    public void countsFromManyThreads() throws InterruptedException {
+        final FrequencySketch sketch = new FrequencySketch(100000);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 3; i++) {
+                        sketch.increment(7);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(12, sketch.frequency(7));
+    }
+
+    @Test
+    public void scanDoesNotFlushPopularKeys() {
+        for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            KVCache cache = new KVCache(1, 4, 0, type);
+            cache.setAdmissionFilter(new FrequencySketch(100));
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 3; j++) {
+                    cache.get("hot" + i);
+                }
+                cache.put("hot" + i, "v");
+            }
+            for (int i = 0; i < 20; i++) {
+                assertNull(cache.get("scan" + i));
+                cache.put("scan" + i, "v");
+                assertNull(type.toString(), cache.get("scan" + i));
+            }
+            for (int i = 0; i < 4; i++) {
+                assertNotNull(type + " hot" + i, cache.get("hot" + i));
+            }
+        }
+    }
+
+    @Test
+    public void popularNewcomerIsAdmitted() {
+        KVCache cache = new KVCache(1, 2);
+        cache.setAdmissionFilter(new FrequencySketch(2));
+        cache.put("a", "a");
+        cache.put("b", "b");
+        for (int i = 0; i < 3; i++) {
+            cache.get("c");
+        }
+        cache.put("c", "c");
+        assertEquals("c", cache.get("c"));
+    }
+
+}
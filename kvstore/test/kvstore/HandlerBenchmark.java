@@ -0,0 +1,91 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares a fixed ThreadPool against a ThreadPerJobExecutor behind a
+ * SocketServer, at increasing numbers of concurrent client connections.
+ * Each client thread issues a run of puts and gets, either as XML (a
+ * connection per request) or as binary frames over one persistent
+ * connection, and the table reports throughput and failed requests.
+ *
+ * Run with: java kvstore.HandlerBenchmark [poolThreads] [requestsPerClient]
+ */
+public class HandlerBenchmark {
+
+    private static final int[] CLIENT_COUNTS = { 1, 4, 16, 64 };
+
+    public static void main(String[] args) throws Exception {
+        int poolThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        System.out.println(String.format("%-8s %-16s %8s %12s %8s",
+                "protocol", "executor", "clients", "requests/s", "errors"));
+        for (boolean binary : new boolean[] { false, true }) {
+            for (int clients : CLIENT_COUNTS) {
+                run(binary, "pool-" + poolThreads, new ThreadPool(poolThreads),
+                        clients, requests);
+                run(binary, "per-connection", new ThreadPerJobExecutor(1024),
+                        clients, requests);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(final boolean binary, String name, JobExecutor executor,
+            int clients, final int requests) throws IOException, InterruptedException {
+        final SocketServer ss = new SocketServer("localhost", 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), executor));
+        ss.connect();
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // benchmark is over
+                }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int id = c;
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    KVClient kvc = new KVClient("localhost", ss.getPort(), 1);
+                    kvc.setBinaryProtocol(binary);
+                    for (int i = 0; i < requests; i++) {
+                        String key = id + "-" + (i / 2 % 10);
+                        try {
+                            if (i % 2 == 0) {
+                                kvc.put(key, "value" + i);
+                            } else {
+                                kvc.get(key);
+                            }
+                        } catch (KVException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    kvc.close();
+                    done.countDown();
+                }
+            };
+            client.setDaemon(true);
+            client.start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        ss.stop();
+        System.out.println(String.format("%-8s %-16s %8d %12.0f %8d",
+                binary ? "binary" : "xml", name, clients,
+                clients * requests / seconds, errors.get()));
+    }
+
+}
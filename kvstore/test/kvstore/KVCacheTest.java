@@ -2,6 +2,12 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
 import org.junit.*;
 
 public class KVCacheTest {
@@ -37,4 +43,198 @@ public class KVCacheTest {
     	assertNull(cache.get("k4"));
     }
 
+    @Test
+    public void getLocksIsOrderedAndDistinct() {
+        KVCache cache = new KVCache(4, 2);
+        List<String> keys = Arrays.asList("a", "b", "c", "d", "a", "e");
+        List<Lock> locks = cache.getLocks(keys);
+        assertEquals(new HashSet<Lock>(locks).size(), locks.size());
+        Collections.reverse(keys);
+        assertEquals(locks, cache.getLocks(keys));
+        for (String key : keys) {
+            assertTrue(locks.contains(cache.getLock(key)));
+        }
+    }
+
+    @Test
+    public void structuredKeysSpreadOverSets() {
+        int[] counts = new int[16];
+        for (int i = 0; i < 1600; i++) {
+            counts[KVCache.setIndex(("user:" + i + ":name").hashCode(), 16)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 50 && count < 150);
+        }
+        for (int numSets : new int[] { 1, 7, 16 }) {
+            int setId = KVCache.setIndex(Integer.MIN_VALUE, numSets);
+            assertTrue(setId >= 0 && setId < numSets);
+        }
+    }
+
+    @Test
+    public void entriesExpireAfterTtl() throws InterruptedException {
+        KVCache cache = new KVCache(1, 2, 50);
+        cache.put("k1", "v1");
+        assertEquals("v1", cache.get("k1"));
+        Thread.sleep(100);
+        assertNull(cache.get("k1"));
+        cache.put("k1", "v2");
+        assertEquals("v2", cache.get("k1"));
+    }
+
+    @Test
+    public void readersShareASet() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 2);
+        cache.getLock("k1").lock();
+        cache.put("k1", "v1");
+        cache.getLock("k1").unlock();
+        final Lock read = cache.getReadLock("k1");
+        read.lock();
+        try {
+            final boolean[] result = new boolean[2];
+            Thread other = new Thread() {
+                @Override
+                public void run() {
+                    Lock otherRead = cache.getReadLock("k1");
+                    result[0] = otherRead.tryLock();
+                    if (result[0]) {
+                        result[1] = "v1".equals(cache.get("k1"));
+                        otherRead.unlock();
+                    }
+                }
+            };
+            other.start();
+            other.join();
+            assertTrue(result[0]);
+            assertTrue(result[1]);
+            assertFalse(cache.getLock("k1").tryLock());
+        } finally {
+            read.unlock();
+        }
+        assertTrue(cache.getLock("k1").tryLock());
+        cache.getLock("k1").unlock();
+    }
+
+    @Test(timeout = 5000)
+    public void readersDoNotBargePastAQueuedWriter() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 2);
+        final Lock read = cache.getReadLock("k1");
+        read.lock();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                cache.getLock("k1").lock();
+                cache.getLock("k1").unlock();
+            }
+        };
+        final boolean[] acquired = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Lock otherRead = cache.getReadLock("k1");
+                otherRead.lock();
+                acquired[0] = true;
+                otherRead.unlock();
+            }
+        };
+        try {
+            writer.start();
+            while (writer.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            reader.start();
+            reader.join(100);
+            assertTrue(reader.isAlive());
+        } finally {
+            read.unlock();
+        }
+        writer.join();
+        reader.join();
+        assertTrue(acquired[0]);
+    }
+
+    @Test
+    public void expiredEntriesFreeTheirSlots() throws InterruptedException {
+        KVCache cache = new KVCache(1, 2, 50);
+        cache.put("k1", "v1");
+        cache.put("k2", "v2");
+        Thread.sleep(100);
+        cache.put("k3", "v3");
+        cache.put("k4", "v4");
+        assertEquals("v3", cache.get("k3"));
+        assertEquals("v4", cache.get("k4"));
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+    }
+
+    @Test
+    public void deleteFromMiddleKeepsQueueOrder() {
+        KVCache cache = new KVCache(1, 4);
+        cache.put("k1", "v1");
+        cache.put("k2", "v2");
+        cache.put("k3", "v3");
+        cache.put("k4", "v4");
+        cache.del("k2");
+        cache.put("k5", "v5");
+        // queue is now k1, k3, k4, k5 with no reference bits set
+        cache.put("k6", "v6");
+        assertNull(cache.get("k1"));
+        cache.put("k7", "v7");
+        assertNull(cache.get("k3"));
+        assertEquals("v4", cache.get("k4"));
+        assertEquals("v5", cache.get("k5"));
+        assertEquals("v6", cache.get("k6"));
+        assertEquals("v7", cache.get("k7"));
+        cache.del("k7");
+        cache.del("k4");
+        assertNull(cache.get("k7"));
+        assertEquals("v5", cache.get("k5"));
+    }
+
+    @Test
+    public void byteBudgetEvictsUntilEntryFits() {
+        long small = KVCache.weigh("k1", "v");
+        KVCache cache = new KVCache(0, new ClockPolicy(1, 10), 3 * small);
+        cache.put("k1", "v");
+        cache.put("k2", "v");
+        cache.put("k3", "v");
+        assertEquals(3 * small, cache.getBytesUsed());
+        // larger than a small entry, so the two oldest have to go
+        cache.put("k4", "vvvvvvvvvv");
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals("v", cache.get("k3"));
+        assertTrue(cache.getBytesUsed() <= 3 * small);
+    }
+
+    @Test
+    public void entryLargerThanBudgetIsNotCached() {
+        KVCache cache = new KVCache(0, new ClockPolicy(1, 10), 200);
+        cache.put("k1", "v1");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append('x');
+        }
+        cache.put("big", big.toString());
+        assertNull(cache.get("big"));
+        assertEquals("v1", cache.get("k1"));
+        // an entry growing past the budget is dropped rather than left stale
+        cache.put("k1", big.toString());
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.getBytesUsed());
+    }
+
+    @Test
+    public void bytesUsedFollowsPutsAndDels() {
+        KVCache cache = new KVCache(4, 4);
+        cache.put("a", "1");
+        cache.put("b", "22");
+        assertEquals(KVCache.weigh("a", "1") + KVCache.weigh("b", "22"), cache.getBytesUsed());
+        cache.put("a", "333");
+        assertEquals(KVCache.weigh("a", "333") + KVCache.weigh("b", "22"), cache.getBytesUsed());
+        cache.del("b");
+        cache.del("a");
+        assertEquals(0, cache.getBytesUsed());
+    }
+
 }
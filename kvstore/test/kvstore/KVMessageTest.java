@@ -76,6 +76,27 @@ public class KVMessageTest {
         }
     }
     
+    @Test
+    public void successfullyParsesNoPrologue() throws KVException {
+        setupSocket("no-prologue.txt");
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(DEL_REQ, kvm.getMsgType());
+        assertEquals("key", kvm.getKey());
+        assertNull(kvm.getValue());
+        assertNull(kvm.getMessage());
+    }
+
+    @Test
+    public void unsuccessfullyParsesGarbage() {
+        setupSocket("garbage.txt");
+        try {
+            new KVMessage(sock);
+            fail("Didn't fail on garbage input");
+        } catch (KVException e) {
+            assertEquals(ERROR_PARSER, e.getKVMessage().getMessage());
+        }
+    }
+
     @Test
     public void successfullyToXml() throws KVException {
     	setupSocket("putreq.txt");
@@ -96,6 +117,215 @@ public class KVMessageTest {
     	assertEquals(kvm.getValue(), kvm1.getValue());
     }
 
+    @Test
+    public void successfullyToXmlWithSpecialCharacters() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("<a & \"b\">");
+        kvm.setValue("line one\r\n\tline two ]]> \u00e9\u4e2d");
+        Socket stringSock = mock(Socket.class);
+        try {
+            when(stringSock.getInputStream()).thenReturn(
+                    new ByteArrayInputStream(kvm.toXML().getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        KVMessage kvm1 = new KVMessage(stringSock);
+        assertEquals(kvm.getKey(), kvm1.getKey());
+        assertEquals(kvm.getValue(), kvm1.getValue());
+    }
+
+    @Test
+    public void successfullyRoundTripsFrames() throws KVException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("k\u00e9y");
+        put.setValue("<value & more>");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        put.sendFrame(out);
+        new KVMessage(RESP, SUCCESS).sendFrame(out);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        KVMessage kvm = KVMessage.receiveFrame(in);
+        assertEquals(PUT_REQ, kvm.getMsgType());
+        assertEquals("k\u00e9y", kvm.getKey());
+        assertEquals("<value & more>", kvm.getValue());
+        assertNull(kvm.getMessage());
+
+        KVMessage resp = KVMessage.receiveFrame(in);
+        assertEquals(RESP, resp.getMsgType());
+        assertEquals(SUCCESS, resp.getMessage());
+        assertNull(resp.getKey());
+        assertNull(KVMessage.receiveFrame(in));
+    }
+
+    @Test
+    public void unsuccessfullyParsesFrame() {
+        byte[] getWithValue = { (byte) FRAME_MAGIC, 1, 0, 0, 0, 1, 'k',
+                0, 0, 0, 1, 'v', -1, -1, -1, -1 };
+        try {
+            KVMessage.receiveFrame(new ByteArrayInputStream(getWithValue));
+            fail("Didn't fail on getreq frame with a value");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+        try {
+            KVMessage.receiveFrame(new ByteArrayInputStream(
+                    new byte[] { (byte) FRAME_MAGIC, 1, 0, 0 }));
+            fail("Didn't fail on truncated frame");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_RECEIVE_DATA,
+                    e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void successfullyRoundTripsTimeout() throws KVException, IOException {
+        KVMessage get = new KVMessage(GET_REQ);
+        get.setKey("key");
+        get.setTimeout(750);
+        KVMessage parsed = new KVMessage(
+                new ByteArrayInputStream(get.toXML().getBytes("UTF-8")));
+        assertEquals(750, parsed.getTimeout());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        get.writeFrame(out);
+        byte[] frame = out.toByteArray();
+        assertEquals(frame.length, KVMessage.frameLength(java.nio.ByteBuffer.wrap(frame)));
+        parsed = KVMessage.receiveFrame(new ByteArrayInputStream(frame));
+        assertEquals(750, parsed.getTimeout());
+        assertEquals("key", parsed.getKey());
+
+        // no timeout means no field on the wire
+        get.setTimeout(0);
+        assertFalse(get.toXML().contains("Timeout"));
+        out.reset();
+        get.writeFrame(out);
+        assertEquals(0, KVMessage.receiveFrame(
+                new ByteArrayInputStream(out.toByteArray())).getTimeout());
+    }
+
+    @Test
+    public void unsuccessfullyParsesNegativeTimeout() throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<KVMessage type=\"getreq\"><Key>k</Key><Timeout>-5</Timeout></KVMessage>";
+        try {
+            new KVMessage(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            fail("negative timeout should be rejected");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void findsFrameLengthOnlyOnceComplete() throws KVException {
+        KVMessage batch = new KVMessage(MULTI_GET_REQ);
+        KVMessage entry = new KVMessage(GET_REQ);
+        entry.setKey("key");
+        batch.addEntry(entry);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeFrame(out);
+        byte[] frame = out.toByteArray();
+        for (int i = 0; i < frame.length; i++) {
+            assertEquals(-1, KVMessage.frameLength(java.nio.ByteBuffer.wrap(frame, 0, i)));
+        }
+        assertEquals(frame.length, KVMessage.frameLength(java.nio.ByteBuffer.wrap(frame)));
+        try {
+            KVMessage.frameLength(java.nio.ByteBuffer.wrap(new byte[] { 'x', 1 }));
+            fail("should not accept a frame without the magic byte");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void successfullyRoundTripsBatch() throws KVException, IOException {
+        KVMessage batch = new KVMessage(MULTI_RESP);
+        KVMessage found = new KVMessage(RESP);
+        found.setKey("k1");
+        found.setValue("v1");
+        batch.addEntry(found);
+        batch.addEntry(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+
+        Socket stringSock = mock(Socket.class);
+        when(stringSock.getInputStream()).thenReturn(
+                new ByteArrayInputStream(batch.toXML().getBytes("UTF-8")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.sendFrame(out);
+        KVMessage[] parsed = { new KVMessage(stringSock),
+                KVMessage.receiveFrame(new ByteArrayInputStream(out.toByteArray())) };
+
+        for (KVMessage kvm : parsed) {
+            assertEquals(MULTI_RESP, kvm.getMsgType());
+            assertEquals(2, kvm.getEntries().size());
+            assertEquals(RESP, kvm.getEntries().get(0).getMsgType());
+            assertEquals("k1", kvm.getEntries().get(0).getKey());
+            assertEquals("v1", kvm.getEntries().get(0).getValue());
+            assertEquals(ERROR_NO_SUCH_KEY, kvm.getEntries().get(1).getMessage());
+        }
+    }
+
+    @Test
+    public void successfullyRoundTripsStatsReq() throws KVException, IOException {
+        KVMessage stats = new KVMessage(STATS_REQ);
+
+        Socket stringSock = mock(Socket.class);
+        when(stringSock.getInputStream()).thenReturn(
+                new ByteArrayInputStream(stats.toXML().getBytes("UTF-8")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stats.sendFrame(out);
+        KVMessage[] parsed = { new KVMessage(stringSock),
+                KVMessage.receiveFrame(new ByteArrayInputStream(out.toByteArray())) };
+
+        for (KVMessage kvm : parsed) {
+            assertEquals(STATS_REQ, kvm.getMsgType());
+            assertNull(kvm.getKey());
+            assertTrue(kvm.getEntries().isEmpty());
+        }
+    }
+
+    @Test
+    public void roundTripsWhitespaceButNotControlCharacters() throws KVException, IOException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("k");
+        put.setValue("a\tb\nc\rd");
+        Socket stringSock = mock(Socket.class);
+        when(stringSock.getInputStream()).thenReturn(
+                new ByteArrayInputStream(put.toXML().getBytes("UTF-8")));
+        assertEquals("a\tb\nc\rd", new KVMessage(stringSock).getValue());
+
+        put.setValue("a\u0001b");
+        try {
+            put.toXML();
+            fail("Didn't fail on a control character");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+        try {
+            KVServer.checkValue("a\u0001b");
+            fail("Server accepted a value XML cannot carry");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+        KVServer.checkValue("a\tb\nc\rd");
+    }
+
+    @Test
+    public void unsuccessfullyToXmlBatch() {
+        KVMessage empty = new KVMessage(MULTI_GET_REQ);
+        KVMessage wrongEntry = new KVMessage(MULTI_GET_REQ);
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("k");
+        put.setValue("v");
+        wrongEntry.addEntry(put);
+        for (KVMessage kvm : new KVMessage[] { empty, wrongEntry }) {
+            try {
+                kvm.toXML();
+                fail("Didn't fail on invalid batch");
+            } catch (KVException e) {
+                assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+            }
+        }
+    }
+
     /* Begin helper methods */
 
     private void setupSocket(String filename) {
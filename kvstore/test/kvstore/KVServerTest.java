@@ -7,6 +7,7 @@ import static org.mockito.Mockito.*;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.*;
@@ -166,4 +167,103 @@ public class KVServerTest {
     	}
     }
 
+    @Test(timeout = 30000)
+    public void concurrentPutGetDelKeepCacheAndStoreInStep() throws Exception {
+        final KVCache cache = new KVCache(2, 8);
+        server = new KVServer(cache);
+        final int owners = 4;
+        final int keysPerOwner = 4;
+        final String[] keys = new String[owners * keysPerOwner];
+        boolean sameSet = false;
+        boolean otherSet = false;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+            sameSet |= i > 0 && cache.getLock(keys[i]) == cache.getLock(keys[0]);
+            otherSet |= cache.getLock(keys[i]) != cache.getLock(keys[0]);
+        }
+        assertTrue(sameSet && otherSet);
+
+        // each key is written by one owner, so its versions only go up
+        final String[] expected = new String[keys.length];
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch ownersDone = new CountDownLatch(owners);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int o = 0; o < owners; o++) {
+            final int owner = o;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random(owner);
+                    try {
+                        for (int n = 1; n <= 3000; n++) {
+                            int k = owner * keysPerOwner + rand.nextInt(keysPerOwner);
+                            if (expected[k] != null && rand.nextInt(3) == 0) {
+                                server.del(keys[k]);
+                                expected[k] = null;
+                                try {
+                                    failures.add("deleted " + keys[k] + " served "
+                                            + server.get(keys[k]));
+                                } catch (KVException e) {
+                                    // gone, as it should be
+                                }
+                            } else {
+                                expected[k] = Integer.toString(n);
+                                server.put(keys[k], expected[k]);
+                                String value = server.get(keys[k]);
+                                if (!expected[k].equals(value)) {
+                                    failures.add(keys[k] + " read " + value
+                                            + " after writing " + expected[k]);
+                                }
+                            }
+                        }
+                    } catch (KVException e) {
+                        failures.add(e.getKVMessage().getMessage());
+                    } finally {
+                        ownersDone.countDown();
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < 4; r++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    int[] lastSeen = new int[keys.length];
+                    int k = 0;
+                    while (ownersDone.getCount() > 0) {
+                        k = (k + 1) % keys.length;
+                        try {
+                            int version = Integer.parseInt(server.get(keys[k]));
+                            if (version < lastSeen[k]) {
+                                failures.add(keys[k] + " went back from "
+                                        + lastSeen[k] + " to " + version);
+                            }
+                            lastSeen[k] = version;
+                        } catch (KVException e) {
+                            if (!ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage())) {
+                                failures.add(e.getKVMessage().getMessage());
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+
+        for (int k = 0; k < keys.length; k++) {
+            assertEquals(expected[k] != null, server.hasKey(keys[k]));
+            String cached = cache.get(keys[k]);
+            assertTrue(cached == null || cached.equals(expected[k]));
+            if (expected[k] != null) {
+                assertEquals(expected[k], server.get(keys[k]));
+            }
+        }
+    }
+
 }
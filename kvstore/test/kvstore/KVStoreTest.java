@@ -3,6 +3,8 @@ package kvstore;
 import static kvstore.KVConstants.*;
 import static org.junit.Assert.*;
 
+import java.io.File;
+
 import org.junit.*;
 
 public class KVStoreTest {
@@ -22,4 +24,20 @@ public class KVStoreTest {
         assertEquals(val, store.get(key));
     }
 
+    @Test
+    public void dumpAndRestore() throws Exception {
+        store.put("k1", "v1");
+        store.put("<k2>", "a & b\n\u00e9");
+        File dump = File.createTempFile("kvstore", ".xml");
+        try {
+            store.dumpToFile(dump.getPath());
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(dump.getPath());
+            assertEquals("v1", restored.get("k1"));
+            assertEquals("a & b\n\u00e9", restored.get("<k2>"));
+        } finally {
+            dump.delete();
+        }
+    }
+
 }
@@ -0,0 +1,132 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class LaneQueueTest {
+
+    private static class LaneJob implements LaneQueue.Job {
+        final LaneQueue.Lane lane;
+
+        LaneJob(LaneQueue.Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public LaneQueue.Lane getLane() {
+            return lane;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void servesLanesInProportionToWeights() {
+        Map<LaneQueue.Lane, Integer> weights = new EnumMap<LaneQueue.Lane, Integer>(LaneQueue.Lane.class);
+        weights.put(LaneQueue.Lane.GET, 3);
+        weights.put(LaneQueue.Lane.PUT, 1);
+        LaneQueue queue = new LaneQueue(100, weights);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(queue.offer(new LaneJob(LaneQueue.Lane.PUT)));
+        }
+        for (int i = 0; i < 40; i++) {
+            assertTrue(queue.offer(new LaneJob(LaneQueue.Lane.GET)));
+        }
+        // while both lanes are busy, every four dequeues serve three GETs
+        for (int round = 0; round < 10; round++) {
+            int gets = 0;
+            for (int i = 0; i < 4; i++) {
+                if (((LaneJob) queue.poll()).lane == LaneQueue.Lane.GET) {
+                    gets++;
+                }
+            }
+            assertEquals(3, gets);
+        }
+        assertEquals(10, queue.getQueueDepth(LaneQueue.Lane.GET));
+        assertEquals(30, queue.getQueueDepth(LaneQueue.Lane.PUT));
+        assertEquals(30, queue.getDequeuedCount(LaneQueue.Lane.GET));
+    }
+
+    @Test
+    public void lanesHaveSeparateCapacity() {
+        LaneQueue queue = new LaneQueue(2);
+        assertTrue(queue.offer(new LaneJob(LaneQueue.Lane.PUT)));
+        assertTrue(queue.offer(new LaneJob(LaneQueue.Lane.PUT)));
+        assertFalse(queue.offer(new LaneJob(LaneQueue.Lane.PUT)));
+        // a full PUT lane leaves room for GETs
+        assertTrue(queue.offer(new LaneJob(LaneQueue.Lane.GET)));
+        // plain Runnables go in the OTHER lane
+        assertTrue(queue.offer(new Thread()));
+        assertEquals(1, queue.getQueueDepth(LaneQueue.Lane.OTHER));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void laneOfRequestType() {
+        assertEquals(LaneQueue.Lane.GET, LaneQueue.laneOf(new KVMessage(KVConstants.MULTI_GET_REQ)));
+        assertEquals(LaneQueue.Lane.PUT, LaneQueue.laneOf(new KVMessage(KVConstants.PUT_REQ)));
+        assertEquals(LaneQueue.Lane.DEL, LaneQueue.laneOf(new KVMessage(KVConstants.DEL_REQ)));
+    }
+
+    @Test
+    public void getsOvertakeQueuedPutsInThreadPool() throws InterruptedException {
+        LaneQueue queue = new LaneQueue(100);
+        ThreadPool pool = new ThreadPool(1, 1, queue, ThreadPool.RejectionPolicy.REJECT, 1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<LaneQueue.Lane> order = new ArrayList<LaneQueue.Lane>();
+        pool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // finish early
+                }
+            }
+        });
+        for (int i = 0; i < 8; i++) {
+            pool.addJob(recording(LaneQueue.Lane.PUT, order));
+        }
+        pool.addJob(recording(LaneQueue.Lane.GET, order));
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1000));
+        // the GET arrived last but runs almost first
+        assertTrue(order.indexOf(LaneQueue.Lane.GET) <= 1);
+        assertEquals(1, queue.getDequeuedCount(LaneQueue.Lane.GET));
+        assertTrue(queue.getMaxWaitMicros(LaneQueue.Lane.PUT)
+                >= queue.getMeanWaitMicros(LaneQueue.Lane.PUT));
+    }
+
+    private static LaneQueue.Job recording(final LaneQueue.Lane lane,
+            final List<LaneQueue.Lane> order) {
+        return new LaneJob(lane) {
+            @Override
+            public void run() {
+                synchronized (order) {
+                    order.add(lane);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void takeWaitsForAJob() throws InterruptedException {
+        LaneQueue queue = new LaneQueue(1);
+        assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        LaneJob job = new LaneJob(LaneQueue.Lane.DEL);
+        queue.put(job);
+        assertSame(job, queue.take());
+    }
+
+}
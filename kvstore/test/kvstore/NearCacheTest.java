@@ -0,0 +1,109 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+
+public class NearCacheTest {
+
+    ServerSocket listener;
+
+    /* Released by the test to let the server answer a GET */
+    final CountDownLatch answerGet = new CountDownLatch(1);
+    final CountDownLatch getReceived = new CountDownLatch(1);
+
+    /**
+     * Serves binary frames, a thread per connection: PUTs succeed at once,
+     * and a GET is answered with "old" only once answerGet is released.
+     */
+    @Before
+    public void startServer() throws IOException {
+        listener = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = listener.accept();
+                        Thread conn = new Thread() {
+                            @Override
+                            public void run() {
+                                serve(s);
+                            }
+                        };
+                        conn.setDaemon(true);
+                        conn.start();
+                    }
+                } catch (IOException e) {
+                    // listener closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        listener.close();
+    }
+
+    private void serve(Socket s) {
+        try {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            KVMessage request;
+            while ((request = KVMessage.receiveFrame(in)) != null) {
+                KVMessage response;
+                if (GET_REQ.equals(request.getMsgType())) {
+                    getReceived.countDown();
+                    answerGet.await();
+                    response = new KVMessage(RESP);
+                    response.setKey(request.getKey());
+                    response.setValue("old");
+                } else {
+                    response = new KVMessage(RESP, SUCCESS);
+                }
+                response.sendFrame(out);
+            }
+            s.close();
+        } catch (Exception e) {
+            // connection closed
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void lateReadDoesNotOverwriteNewerWrite() throws Exception {
+        final KVClient client = new KVClient("localhost", listener.getLocalPort());
+        client.setBinaryProtocol(true);
+        client.setNearCache(new KVCache(1, 4));
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.get("key");
+                } catch (KVException e) {
+                    // checked below through the near cache
+                }
+            }
+        };
+        reader.start();
+        getReceived.await();
+        client.put("key", "new");
+        answerGet.countDown();
+        reader.join();
+        // served from the near cache; the server would answer "old"
+        assertEquals("new", client.get("key"));
+        client.close();
+    }
+
+}
@@ -0,0 +1,89 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.*;
+
+public class NegativeCacheTest {
+
+    @Test
+    public void remembersUntilRemoved() {
+        NegativeCache absent = new NegativeCache(16, 60000);
+        assertFalse(absent.contains("key"));
+        absent.add("key");
+        assertTrue(absent.contains("key"));
+        absent.remove("other");
+        assertTrue(absent.contains("key"));
+        absent.remove("key");
+        assertFalse(absent.contains("key"));
+    }
+
+    @Test
+    public void forgetsAfterTtl() throws InterruptedException {
+        NegativeCache absent = new NegativeCache(16, 50);
+        absent.add("key");
+        assertTrue(absent.contains("key"));
+        Thread.sleep(100);
+        assertFalse(absent.contains("key"));
+    }
+
+    @Test
+    public void staysWithinCapacity() {
+        NegativeCache absent = new NegativeCache(4, 60000);
+        for (int i = 0; i < 100; i++) {
+            absent.add("key" + i);
+        }
+        int remembered = 0;
+        for (int i = 0; i < 100; i++) {
+            if (absent.contains("key" + i)) {
+                remembered++;
+            }
+        }
+        assertTrue(remembered > 0);
+        assertTrue(remembered <= 4);
+    }
+
+    @Test
+    public void serverForgetsAbsenceOnWrite() throws KVException {
+        KVServer server = new KVServer(10, 2);
+        server.setNegativeCache(new NegativeCache(16, 60000));
+        for (int i = 0; i < 2; i++) {
+            assertNoSuchKey(server, "key");
+        }
+        server.put("key", "value");
+        assertEquals("value", server.get("key"));
+        server.del("key");
+        assertNoSuchKey(server, "key");
+        server.putAll(Collections.singletonMap("key", "again"));
+        assertEquals("again", server.get("key"));
+        assertEquals(1, server.getAll(Arrays.asList("key", "missing")).size());
+        assertNoSuchKey(server, "missing");
+    }
+
+    @Test
+    public void missesDoNotCaptureStackTraces() {
+        KVServer server = new KVServer(10, 2);
+        for (int i = 0; i < 2; i++) {
+            try {
+                server.get("missing");
+                fail("key should not exist");
+            } catch (KVException e) {
+                assertEquals(0, e.getStackTrace().length);
+            }
+        }
+    }
+
+    private static void assertNoSuchKey(KVServer server, String key) {
+        try {
+            server.get(key);
+            fail(key + " should not exist");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+public class NioSocketServerTest {
+
+    NioSocketServer server;
+    Thread serverThread;
+    KVClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new NioSocketServer("localhost", 0);
+        server.addHandler(new ServerClientHandler(new KVServer(100, 10), 2));
+        server.connect();
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    // test will fail on its own
+                }
+            }
+        };
+        serverThread.start();
+        client = new KVClient("localhost", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.close();
+        server.stop();
+        serverThread.join(1000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void servesXMLRequests() throws KVException {
+        client.put("key", "value");
+        assertEquals("value", client.get("key"));
+        client.del("key");
+        try {
+            client.get("key");
+            fail("key should have been deleted");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void servesPipelinedFramesInOrder() throws KVException {
+        client.setBinaryProtocol(true);
+        List<KVMessage> requests = new ArrayList<KVMessage>();
+        for (int i = 0; i < 50; i++) {
+            KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+            put.setKey("key" + i);
+            put.setValue("val" + i);
+            requests.add(put);
+            KVMessage get = new KVMessage(KVConstants.GET_REQ);
+            get.setKey("key" + i);
+            requests.add(get);
+        }
+        List<KVMessage> responses = client.pipeline(requests);
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(KVConstants.SUCCESS, responses.get(2 * i).getMessage());
+            assertEquals("val" + i, responses.get(2 * i + 1).getValue());
+        }
+    }
+
+    @Test
+    public void largeValuesArriveInPieces() throws KVException {
+        client.setBinaryProtocol(true);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        client.put("big", value.toString());
+        assertEquals(value.toString(), client.get("big"));
+    }
+
+    @Test
+    public void idleConnectionsDoNotHoldWorkers() throws IOException, KVException {
+        // more silent connections than worker threads, one half-way through a frame
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                idle.add(new Socket("localhost", server.getPort()));
+            }
+            OutputStream partial = idle.get(0).getOutputStream();
+            partial.write(new byte[] { (byte) KVConstants.FRAME_MAGIC, 1, 0 });
+            partial.flush();
+            client.put("key", "value");
+            assertEquals("value", client.get("key"));
+        } finally {
+            for (Socket s : idle) {
+                s.close();
+            }
+        }
+    }
+
+    @Test
+    public void spreadsConnectionsOverEventLoops() throws Exception {
+        final NioSocketServer multi = new NioSocketServer("localhost", 0, 4);
+        multi.addHandler(new ServerClientHandler(new KVServer(100, 10), 4));
+        multi.connect();
+        Thread multiThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    multi.start();
+                } catch (IOException e) {
+                    // test will fail on its own
+                }
+            }
+        };
+        multiThread.start();
+        try {
+            List<KVClient> clients = new ArrayList<KVClient>();
+            for (int i = 0; i < 16; i++) {
+                KVClient c = new KVClient("localhost", multi.getPort(), 1);
+                c.setBinaryProtocol(i % 2 == 0);
+                clients.add(c);
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).put("key" + i, "val" + i);
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals("val" + i, clients.get((i + 1) % clients.size()).get("key" + i));
+                clients.get(i).close();
+            }
+        } finally {
+            multi.stop();
+            multiThread.join(1000);
+        }
+        assertFalse(multiThread.isAlive());
+    }
+
+    @Test
+    public void badFrameIsReported() throws IOException, KVException {
+        Socket s = new Socket("localhost", server.getPort());
+        try {
+            s.setSoTimeout(KVConstants.TIMEOUT_MILLISECONDS);
+            OutputStream out = s.getOutputStream();
+            out.write(new byte[] { (byte) KVConstants.FRAME_MAGIC, 99 });
+            out.flush();
+            KVMessage response = KVMessage.receiveFrame(s.getInputStream());
+            assertEquals(KVConstants.ERROR_INVALID_FORMAT, response.getMessage());
+            assertNull(KVMessage.receiveFrame(s.getInputStream()));
+        } finally {
+            s.close();
+        }
+    }
+
+}
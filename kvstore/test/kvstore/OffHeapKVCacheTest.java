@@ -0,0 +1,123 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+
+public class OffHeapKVCacheTest {
+
+    @Test
+    public void singlePutAndGet() {
+        OffHeapKVCache cache = new OffHeapKVCache(1, 4);
+        cache.put("hello", "world");
+        assertEquals("world", cache.get("hello"));
+        assertNull(cache.get("hellp"));
+    }
+
+    @Test
+    public void testPutGetDelWithSecondChance() {
+        OffHeapKVCache cache = new OffHeapKVCache(1, 3);
+        cache.put("k1", "k1");
+        cache.put("k2", "k2");
+        cache.put("k3", "k3");
+        assertEquals("k1", cache.get("k1"));
+        cache.put("k1", "k2");
+        assertEquals("k2", cache.get("k1"));
+        cache.put("k4", "k4");
+        assertNotNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        cache.put("k5", "k5");
+        assertNull(cache.get("k3"));
+        cache.del("k1");
+        assertNull(cache.get("k1"));
+        cache.put("k1", "k1");
+        cache.put("k2", "k2");
+        assertNull(cache.get("k4"));
+        assertEquals(new KVCacheTestShape().toXML(), cache.toXML());
+    }
+
+    /* The same operations on a KVCache, for comparing XML */
+    private static class KVCacheTestShape extends KVCache {
+        KVCacheTestShape() {
+            super(1, 3);
+            put("k1", "k1");
+            put("k2", "k2");
+            put("k3", "k3");
+            get("k1");
+            put("k1", "k2");
+            put("k4", "k4");
+            get("k1");
+            put("k5", "k5");
+            del("k1");
+            put("k1", "k1");
+            put("k2", "k2");
+        }
+    }
+
+    @Test
+    public void chunksAreReusedAndResized() {
+        OffHeapKVCache cache = new OffHeapKVCache(4, 4);
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < KVServer.MAX_VAL_SIZE; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        long reserved = 0;
+        for (int round = 0; round < 3; round++) {
+            cache.put("big", big.toString());
+            assertEquals(big.toString(), cache.get("big"));
+            cache.put("big", "small");
+            assertEquals("small", cache.get("big"));
+            if (round == 0) {
+                reserved = cache.getBytesReserved();
+            }
+        }
+        // one slab for each size class, reused every round
+        assertEquals(reserved, cache.getBytesReserved());
+        assertEquals(2 * SlabAllocator.SLAB_BYTES, reserved);
+        cache.del("big");
+        assertEquals(0, cache.getBytesUsed());
+    }
+
+    @Test
+    public void behavesAsABoundedMap() {
+        OffHeapKVCache cache = new OffHeapKVCache(4, 5);
+        Map<String, String> truth = new HashMap<String, String>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + random.nextInt(60);
+            int op = random.nextInt(10);
+            if (op < 3) {
+                String value = "v" + i + "-" + random.nextInt(1 << random.nextInt(20));
+                cache.put(key, value);
+                truth.put(key, value);
+            } else if (op < 4) {
+                cache.del(key);
+                truth.remove(key);
+            } else {
+                String value = cache.get(key);
+                if (value != null) {
+                    assertEquals(truth.get(key), value);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void backsAKVServer() throws KVException {
+        KVServer server = new KVServer(new OffHeapKVCache(10, 2));
+        for (int i = 0; i < 100; i++) {
+            server.put("key" + i, "val" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("val" + i, server.get("key" + i));
+        }
+        server.del("key0");
+        assertFalse(server.hasKey("key0"));
+        assertTrue(server.getCacheBytesUsed() > 0);
+    }
+
+}
@@ -0,0 +1,161 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class PartitionedKVServerTest {
+
+    PartitionedKVServer server;
+
+    @Before
+    public void setUp() {
+        server = new PartitionedKVServer(4, 10, 5);
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void putGetDel() throws KVException {
+        server.put("key", "value");
+        assertEquals("value", server.get("key"));
+        assertTrue(server.hasKey("key"));
+        server.del("key");
+        assertFalse(server.hasKey("key"));
+        try {
+            server.get("key");
+            fail("key should have been deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        try {
+            server.del("key");
+            fail("key should have been deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void checksKeysBeforeRouting() {
+        try {
+            server.put("", "value");
+            fail("empty key should be rejected");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void valuesOutliveTheCache() throws KVException {
+        // far more keys than the caches hold
+        for (int i = 0; i < 1000; i++) {
+            server.put("key" + i, "val" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("val" + i, server.get("key" + i));
+        }
+    }
+
+    @Test
+    public void batchesSpanShards() throws KVException {
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        List<String> keys = new ArrayList<String>();
+        boolean[] shardUsed = new boolean[server.getShardCount()];
+        for (int i = 0; i < 40; i++) {
+            pairs.put("key" + i, "val" + i);
+            keys.add("key" + i);
+            shardUsed[server.shardIndex("key" + i)] = true;
+        }
+        for (boolean used : shardUsed) {
+            assertTrue(used);
+        }
+        server.putAll(pairs);
+        keys.add("missing");
+        Map<String, String> values = server.getAll(keys);
+        // in the order asked for, missing keys left out
+        assertEquals(new ArrayList<String>(pairs.keySet()),
+                new ArrayList<String>(values.keySet()));
+        assertEquals(pairs, values);
+        assertEquals(pairs.keySet(), server.delAll(keys));
+        assertTrue(server.getAll(keys).isEmpty());
+    }
+
+    @Test
+    public void concurrentClients() throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            String key = id + "-" + i;
+                            server.put(key, "v" + i);
+                            if (!("v" + i).equals(server.get(key))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (KVException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    @Test(timeout = 5000)
+    public void errorsReachTheCallerAndSpareTheShard() throws KVException {
+        try {
+            server.call("key", new PartitionedKVServer.Task<Void>() {
+                @Override
+                Void run(PartitionedKVServer.Shard shard) {
+                    throw new AssertionError("broken invariant");
+                }
+            });
+            fail("the error should have been rethrown");
+        } catch (AssertionError e) {
+            assertEquals("broken invariant", e.getMessage());
+        }
+        server.put("key", "value");
+        assertEquals("value", server.get("key"));
+    }
+
+    @Test(timeout = 5000)
+    public void requestsAfterShutdownFail() throws KVException {
+        server.put("key", "value");
+        server.shutdown();
+        try {
+            server.get("key");
+            fail("a shut down server should refuse requests");
+        } catch (KVException e) {
+            assertEquals(ERROR_SERVER_SHUT_DOWN, e.getKVMessage().getMessage());
+        }
+        try {
+            server.getAll(Arrays.asList("key", "other"));
+            fail("a shut down server should refuse requests");
+        } catch (KVException e) {
+            assertEquals(ERROR_SERVER_SHUT_DOWN, e.getKVMessage().getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how KVServer and PartitionedKVServer scale with the number of
+ * threads calling them directly. Each thread runs a mix of gets, puts and
+ * dels on its own spread of keys, sized so that most gets miss the cache and
+ * go to the store, which is where a server-wide lock would show up.
+ *
+ * Run with: java kvstore.ServerScalingBenchmark [opsPerThread] [keysPerThread]
+ */
+public class ServerScalingBenchmark {
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String[] args) throws Exception {
+        int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int keys = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        System.out.println(String.format("%-20s %8s %12s %8s",
+                "server", "threads", "ops/s", "errors"));
+        for (int threads : THREAD_COUNTS) {
+            run("KVServer", new KVServer(64, 4), threads, ops, keys);
+        }
+        for (int threads : THREAD_COUNTS) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            PartitionedKVServer server = new PartitionedKVServer(cores, 64 / cores + 1, 4);
+            run("Partitioned-" + cores, server, threads, ops, keys);
+            server.shutdown();
+        }
+    }
+
+    private static void run(String name, final KeyValueInterface server, int threads,
+            final int ops, final int keys) throws InterruptedException {
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < ops; i++) {
+                        String key = id + ":" + (i * 7919 % keys);
+                        try {
+                            switch (i % 10) {
+                            case 0:
+                            case 1:
+                                server.put(key, "value" + i);
+                                break;
+                            case 2:
+                                server.del(key);
+                                break;
+                            default:
+                                server.get(key);
+                            }
+                        } catch (KVException e) {
+                            if (!KVConstants.ERROR_NO_SUCH_KEY.equals(
+                                    e.getKVMessage().getMessage())) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.println(String.format("%-20s %8d %12.0f %8d",
+                name, threads, (double) threads * ops / seconds, errors.get()));
+    }
+
+}
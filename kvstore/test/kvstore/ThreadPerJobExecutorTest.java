@@ -0,0 +1,89 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class ThreadPerJobExecutorTest {
+
+    @Test
+    public void runsJobsConcurrentlyUpToTheCap() throws InterruptedException {
+        final ThreadPerJobExecutor executor = new ThreadPerJobExecutor(3);
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            executor.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // finish early
+                    }
+                }
+            });
+        }
+        // all three run at once, each on its own thread
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertEquals(3, executor.getActiveCount());
+
+        final CountDownLatch fourthRan = new CountDownLatch(1);
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.addJob(new Runnable() {
+                        @Override
+                        public void run() {
+                            fourthRan.countDown();
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // test will fail on its own
+                }
+            }
+        };
+        submitter.start();
+        // a fourth job waits for a slot
+        assertFalse(fourthRan.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(fourthRan.await(1, TimeUnit.SECONDS));
+        submitter.join(1000);
+    }
+
+    @Test
+    public void failingJobFreesItsSlot() throws InterruptedException {
+        ThreadPerJobExecutor executor = new ThreadPerJobExecutor(1);
+        Thread.UncaughtExceptionHandler quiet = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                // expected
+            }
+        };
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(quiet);
+        try {
+            executor.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("job failed");
+                }
+            });
+            final CountDownLatch ran = new CountDownLatch(1);
+            executor.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+    }
+
+}
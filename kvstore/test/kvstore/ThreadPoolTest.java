@@ -0,0 +1,160 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class ThreadPoolTest {
+
+    private static Runnable await(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // finish early
+                }
+            }
+        };
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 1, 1, ThreadPool.RejectionPolicy.REJECT, 1000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        pool.addJob(await(started, release));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        pool.addJob(await(new CountDownLatch(1), release));
+        assertEquals(1, pool.getQueueDepth());
+        assertEquals(1, pool.getActiveCount());
+        try {
+            pool.addJob(await(new CountDownLatch(1), release));
+            fail("third job should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, pool.getRejectedCount());
+        }
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1000));
+    }
+
+    @Test
+    public void growsAndShrinksBetweenBounds() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 3, 10, ThreadPool.RejectionPolicy.BLOCK, 100);
+        assertEquals(1, pool.getThreadCount());
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            pool.addJob(await(started, release));
+        }
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertEquals(3, pool.getThreadCount());
+        assertEquals(3, pool.getActiveCount());
+        // a fourth job queues rather than exceeding maxThreads
+        pool.addJob(await(new CountDownLatch(1), release));
+        assertEquals(3, pool.getThreadCount());
+        assertEquals(1, pool.getQueueDepth());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pool.getThreadCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getThreadCount());
+        assertEquals(0, pool.getActiveCount());
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1000));
+    }
+
+    @Test
+    public void startsAWorkerForEveryJobBurst() throws InterruptedException {
+        // surplus workers exit at once, leaving a single idle worker
+        ThreadPool pool = new ThreadPool(1, 3, 100, ThreadPool.RejectionPolicy.BLOCK, 1);
+        for (int round = 0; round < 100; round++) {
+            while (pool.getThreadCount() > 1) {
+                Thread.sleep(1);
+            }
+            CountDownLatch started = new CountDownLatch(3);
+            CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < 3; i++) {
+                pool.addJob(await(started, release));
+            }
+            assertTrue(started.await(1, TimeUnit.SECONDS));
+            release.countDown();
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1000));
+    }
+
+    @Test
+    public void shutdownRunsQueuedJobs() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(2);
+        final AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1000));
+        assertEquals(100, ran.get());
+        assertEquals(0, pool.getThreadCount());
+        try {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("a shut down pool should reject jobs");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failingJobIsCountedAndThreadSurvives() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                failed.countDown();
+            }
+        });
+        try {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("job failed");
+                }
+            });
+            assertTrue(failed.await(1, TimeUnit.SECONDS));
+            final CountDownLatch ran = new CountDownLatch(1);
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+            assertEquals(1, pool.getFailedCount());
+            assertEquals(1, pool.getThreadCount());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+            pool.shutdown();
+        }
+    }
+
+}